@@ -0,0 +1,71 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+/**
+ * What working out the child's command line costs, per finder and for the whole of
+ * {@link Daemon#buildARGV(MicroC)}. The Linux finder caches our argv, so reading it uncached
+ * is measured separately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArgvBenchmark
+{
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    private final List<String> programArgs = asList("--port", "8080", "--name", "worker");
+    private final File         cmdline     = new File("/proc/self/cmdline");
+
+    private final Daemon withArgs    = new Daemon().withArgv(programArgs);
+    private final Daemon withoutArgs = new Daemon();
+
+    @Benchmark
+    public List<String> linuxArgvFinder()
+    {
+        return new LinuxArgvFinder(programArgs).getArgv();
+    }
+
+    @Benchmark
+    public List<String> linuxCmdlineRead() throws IOException
+    {
+        return LinuxArgvFinder.read(cmdline);
+    }
+
+    @Benchmark
+    public List<String> jvmBasedArgvFinder()
+    {
+        return new JvmBasedArgvFinder(programArgs).getArgv();
+    }
+
+    @Benchmark
+    public List<String> buildArgvWithMainArgs()
+    {
+        return withArgs.buildARGV(posix);
+    }
+
+    @Benchmark
+    public List<String> buildArgvDiscovered()
+    {
+        return withoutArgs.buildARGV(posix);
+    }
+}
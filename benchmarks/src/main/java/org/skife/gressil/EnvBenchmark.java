@@ -0,0 +1,49 @@
+package org.skife.gressil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Daemon#getEnv(String...)} with many additions. The inherited environment is whatever
+ * the benchmark is run with, so run it under a large one too, eg with
+ * <code>env $(seq -f 'BENCH_%g=value' 1000) java -jar target/benchmarks.jar EnvBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnvBenchmark
+{
+    @Param({"1", "100", "1000"})
+    public int additions;
+
+    private String[] extra;
+
+    @Setup
+    public void setUp()
+    {
+        extra = new String[additions];
+        for (int i = 0; i < additions; i++) {
+            extra[i] = "GRESSIL_BENCH_" + i + "=some value which is not too short";
+        }
+    }
+
+    @Benchmark
+    public String[] getEnv()
+    {
+        return Daemon.getEnv(extra);
+    }
+}
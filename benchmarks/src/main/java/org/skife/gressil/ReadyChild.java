@@ -0,0 +1,13 @@
+package org.skife.gressil;
+
+/**
+ * What {@link SpawnBenchmark} spawns: daemonizes, says it is ready, and exits.
+ */
+public class ReadyChild
+{
+    public static void main(String[] args) throws Exception
+    {
+        new Daemon().withMainArgs(args).daemonize();
+        Daemon.notifyReady();
+    }
+}
@@ -0,0 +1,83 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+import jnr.ffi.byref.IntByReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from asking for a daemon to it calling {@link Daemon#notifyReady()}, which is mostly
+ * the child JVM starting up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class SpawnBenchmark
+{
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    private final List<Integer> children = new ArrayList<Integer>();
+
+    private Daemon daemon;
+    private String command;
+    private String os;
+
+    @Setup
+    public void setUp()
+    {
+        // the argv finders respawn whatever main class this JVM was started with, which
+        // under JMH is its own forked runner, so point them at ReadyChild instead. The Linux
+        // finder reads the real command line, so pretend to be elsewhere to use the JVM one.
+        command = System.getProperty("sun.java.command");
+        os = System.getProperty("os.name");
+        System.setProperty("sun.java.command", ReadyChild.class.getName());
+        System.setProperty("os.name", "benchmark");
+        daemon = new Daemon().withMainArgs().withReadinessTimeout(30, TimeUnit.SECONDS);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        System.setProperty("sun.java.command", command);
+        System.setProperty("os.name", os);
+    }
+
+    @TearDown(Level.Iteration)
+    public void reap()
+    {
+        IntByReference status = new IntByReference();
+        for (Integer pid : children) {
+            posix.waitpid(pid, status, 0);
+        }
+        children.clear();
+    }
+
+    @Benchmark
+    public Status spawnToReady() throws Exception
+    {
+        Status status = daemon.spawn(Collections.<String, Integer>emptyMap());
+        if (!status.isReady()) {
+            throw new IllegalStateException("child did not become ready: " + status.getReadiness());
+        }
+        children.add(status.getChildPid());
+        return status;
+    }
+}
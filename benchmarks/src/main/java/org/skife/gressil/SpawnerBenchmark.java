@@ -0,0 +1,59 @@
+package org.skife.gressil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running <code>true</code> to completion with {@link Spawner} and with {@link ProcessBuilder},
+ * with more or less of the heap in use, to show whether spawn cost follows heap size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SpawnerBenchmark
+{
+    @Param({"0", "2048"})
+    public int ballastMegabytes;
+
+    private byte[][] ballast;
+
+    private final Spawner        spawner        = new Spawner("true").withStdin(Spawner.Redirect.DISCARD)
+                                                                     .withStdout(Spawner.Redirect.DISCARD)
+                                                                     .withStderr(Spawner.Redirect.DISCARD);
+    private final ProcessBuilder processBuilder = new ProcessBuilder("true");
+
+    @Setup
+    public void setUp()
+    {
+        ballast = new byte[ballastMegabytes][];
+        for (int i = 0; i < ballast.length; i++) {
+            ballast[i] = new byte[1024 * 1024];
+        }
+    }
+
+    @Benchmark
+    public int spawner() throws Exception
+    {
+        return spawner.start().waitFor();
+    }
+
+    @Benchmark
+    public int processBuilder() throws Exception
+    {
+        return processBuilder.start().waitFor();
+    }
+}
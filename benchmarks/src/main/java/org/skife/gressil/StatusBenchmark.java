@@ -0,0 +1,118 @@
+package org.skife.gressil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Throughput of {@link Daemon#checkStatus()}, {@link DaemonRegistry#checkAll(java.util.Collection)},
+ * {@link DaemonMetrics#read(File)} and {@link Daemon#stop()} against a pidfile. The
+ * process behind the pidfile ignores SIGINT, so stopping it can be repeated.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatusBenchmark
+{
+    private Process target;
+    private File    running;
+    private File    dead;
+
+    private Daemon runningDaemon;
+    private Daemon deadDaemon;
+
+    private DaemonRegistry registry;
+    private List<File>     both;
+
+    private File metrics;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        // the shell writes the pidfile, as Process has no pid before Java 9, and exec keeps it
+        running = File.createTempFile("gressil-bench", ".pid");
+        target = new ProcessBuilder("sh", "-c", "echo $$ > \"$0\"; trap '' INT; exec sleep 100000",
+                                    running.getAbsolutePath()).start();
+        while (running.length() == 0) {
+            Thread.sleep(10);
+        }
+
+        // pid_max is at most 2^22, so this is never a live process
+        dead = File.createTempFile("gressil-bench", ".pid");
+        FileOutputStream out = new FileOutputStream(dead);
+        out.write(String.valueOf(1 << 23).getBytes());
+        out.close();
+
+        runningDaemon = new Daemon().withPidFile(running);
+        deadDaemon = new Daemon().withPidFile(dead);
+
+        registry = new DaemonRegistry();
+        both = asList(running, dead);
+
+        // published to from this JVM, reading costs the same whoever writes it
+        metrics = File.createTempFile("gressil-bench", ".metrics");
+        DaemonMetrics.counter("bench.requests").add(42);
+        DaemonMetrics.open(metrics, 1000).start();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        target.destroy();
+        for (File pidfile : new File[]{running, dead}) {
+            pidfile.delete();
+            // left beside each pidfile by checkStatus() and stop()
+            new File(pidfile.getPath() + ".lock").delete();
+        }
+        metrics.delete();
+    }
+
+    @Benchmark
+    public DaemonStatus checkStatusRunning()
+    {
+        return runningDaemon.checkStatus();
+    }
+
+    @Benchmark
+    public DaemonStatus checkStatusDead()
+    {
+        return deadDaemon.checkStatus();
+    }
+
+    @Benchmark
+    public Map<File, DaemonStatus> checkAllRegistry()
+    {
+        return registry.checkAll(both);
+    }
+
+    @Benchmark
+    public DaemonMetrics.Snapshot readMetrics() throws Exception
+    {
+        return DaemonMetrics.read(metrics);
+    }
+
+    @Benchmark
+    public DaemonStatus stop()
+    {
+        return runningDaemon.stop();
+    }
+}
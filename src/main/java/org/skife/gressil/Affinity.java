@@ -0,0 +1,68 @@
+package org.skife.gressil;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Platform;
+import jnr.ffi.Pointer;
+
+/**
+ * CPU affinity and NUMA memory policy for the calling thread, which a child spawned from the
+ * thread inherits. Linux only.
+ */
+final class Affinity
+{
+    private static final String ARCH = System.getProperty("os.arch");
+
+    // jnr does not know about aarch64, so go by what the JVM says
+    private static final long SYS_SET_MEMPOLICY = "aarch64".equals(ARCH) ? 237 : 238;
+
+    private static final int MPOL_BIND = 2;
+
+    private Affinity()
+    {
+    }
+
+    static boolean isSupported()
+    {
+        return Platform.getNativePlatform().getOS() == Platform.OS.LINUX
+               && ("amd64".equals(ARCH) || "x86_64".equals(ARCH) || "aarch64".equals(ARCH));
+    }
+
+    /**
+     * Restrict the calling thread to running on <code>cpus</code>
+     */
+    static void setCpus(MicroC posix, int[] cpus)
+    {
+        Pointer mask = toMask(cpus);
+        if (posix.sched_setaffinity(0, mask.size(), mask) != 0) {
+            throw new RuntimeException("sched_setaffinity: " + posix.strerror(Fcntl.errno()));
+        }
+    }
+
+    /**
+     * Have the calling thread allocate memory only from NUMA <code>nodes</code>
+     */
+    static void setMemoryNodes(MicroC posix, int[] nodes)
+    {
+        Pointer mask = toMask(nodes);
+        // the kernel uses one bit less than maxnode says
+        long max_node = mask.size() * 8 + 1;
+        if (posix.syscall(SYS_SET_MEMPOLICY, MPOL_BIND, mask.address(), max_node) != 0) {
+            throw new RuntimeException("set_mempolicy: " + posix.strerror(Fcntl.errno()));
+        }
+    }
+
+    private static Pointer toMask(int[] bits)
+    {
+        int max = 0;
+        for (int bit : bits) {
+            max = Math.max(max, bit);
+        }
+        int words = max / 64 + 1;
+        Pointer mask = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), words * 8, true);
+        for (int bit : bits) {
+            long offset = (bit / 64) * 8;
+            mask.putLong(offset, mask.getLong(offset) | (1L << (bit % 64)));
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,271 @@
+package org.skife.gressil;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An output stream which copies what is written to it into a bounded ring buffer, which a
+ * background thread drains to the real stream. Writers only wait on the disk when the buffer is
+ * full, and then only if the overflow policy is {@link OverflowPolicy#BLOCK}.
+ * <p/>
+ * {@link #flush()} does not wait for the data to be written, it only wakes the writer thread.
+ * {@link #close()} waits for everything buffered to be written.
+ */
+public class AsyncOutputStream extends OutputStream
+{
+    public enum OverflowPolicy
+    {
+        /**
+         * Wait for the writer thread to make room
+         */
+        BLOCK,
+
+        /**
+         * Discard writes which do not fit, counting the bytes discarded
+         */
+        DROP
+    }
+
+    private static final int CHUNK = 8192;
+
+    private static volatile AsyncOutputStream installedOut;
+    private static volatile AsyncOutputStream installedErr;
+
+    private final OutputStream   out;
+    private final OverflowPolicy policy;
+    private final byte[]         buffer;
+    private final Thread         writer;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private int     head        = 0;
+    private int     count       = 0;
+    private boolean closed      = false;
+    private boolean passThrough = false;
+
+    public AsyncOutputStream(OutputStream out, int capacity, OverflowPolicy policy, String threadName)
+    {
+        this.out = out;
+        this.policy = policy;
+        this.buffer = new byte[capacity];
+        this.writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        }, threadName);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        synchronized (buffer) {
+            if (passThrough) {
+                out.write(b, off, len);
+                out.flush();
+                return;
+            }
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (policy == OverflowPolicy.DROP) {
+                if (len > buffer.length - count) {
+                    // drop the whole write rather than leave half a line
+                    dropped.addAndGet(len);
+                    return;
+                }
+                put(b, off, len);
+                return;
+            }
+
+            boolean interrupted = false;
+            try {
+                while (len > 0) {
+                    while (count == buffer.length && !closed) {
+                        interrupted |= await();
+                    }
+                    if (closed) {
+                        throw new IOException("stream closed");
+                    }
+                    int n = Math.min(len, buffer.length - count);
+                    put(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wake the writer thread, without waiting for it
+     */
+    @Override
+    public void flush()
+    {
+        synchronized (buffer) {
+            buffer.notifyAll();
+        }
+    }
+
+    /**
+     * Write out everything buffered, then close the underlying stream
+     */
+    @Override
+    public void close() throws IOException
+    {
+        stop();
+        out.close();
+    }
+
+    /**
+     * Write out everything buffered, and from then on write straight through to the underlying
+     * stream, so that output from later shutdown hooks is not lost
+     */
+    void stopAndPassThrough()
+    {
+        stop();
+        synchronized (buffer) {
+            passThrough = true;
+        }
+    }
+
+    private void stop()
+    {
+        synchronized (buffer) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            buffer.notifyAll();
+        }
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The number of bytes discarded because the buffer was full
+     */
+    public long getDroppedBytes()
+    {
+        return dropped.get();
+    }
+
+    private void put(byte[] b, int off, int len)
+    {
+        int tail = (head + count) % buffer.length;
+        int first = Math.min(len, buffer.length - tail);
+        System.arraycopy(b, off, buffer, tail, first);
+        System.arraycopy(b, off + first, buffer, 0, len - first);
+        count += len;
+        buffer.notifyAll();
+    }
+
+    private void drain()
+    {
+        byte[] chunk = new byte[Math.min(CHUNK, buffer.length)];
+        boolean interrupted = false;
+        while (true) {
+            int n;
+            synchronized (buffer) {
+                while (count == 0 && !closed) {
+                    interrupted |= await();
+                }
+                if (count == 0) {
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return;
+                }
+                n = Math.min(chunk.length, Math.min(count, buffer.length - head));
+                System.arraycopy(buffer, head, chunk, 0, n);
+                head = (head + n) % buffer.length;
+                count -= n;
+                buffer.notifyAll();
+            }
+            try {
+                out.write(chunk, 0, n);
+                out.flush();
+            }
+            catch (IOException e) {
+                // nowhere left to report it
+                dropped.addAndGet(n);
+            }
+        }
+    }
+
+    /**
+     * Wait on the buffer. An interrupt does not stop the wait, as the next wait would only
+     * throw again straight away, so it is returned to be passed on once done waiting.
+     *
+     * @return whether we were interrupted
+     */
+    private boolean await()
+    {
+        try {
+            buffer.wait();
+            return false;
+        }
+        catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Replace System.out and System.err with streams writing through ring buffers of
+     * <code>capacity</code> bytes to descriptors 1 and 2, written out when the JVM exits.
+     */
+    static void install(int capacity, OverflowPolicy policy)
+    {
+        final AsyncOutputStream stdout = new AsyncOutputStream(new FileOutputStream(FileDescriptor.out),
+                                                               capacity, policy, "gressil-stdout");
+        final AsyncOutputStream stderr = new AsyncOutputStream(new FileOutputStream(FileDescriptor.err),
+                                                               capacity, policy, "gressil-stderr");
+        System.setOut(new PrintStream(stdout, true));
+        System.setErr(new PrintStream(stderr, true));
+        installedOut = stdout;
+        installedErr = stderr;
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                stdout.stopAndPassThrough();
+                stderr.stopAndPassThrough();
+            }
+        }, "gressil-output-flush"));
+    }
+
+    /**
+     * The bytes dropped by the streams put in place by {@link #install(int, OverflowPolicy)}
+     */
+    static long getInstalledDroppedBytes()
+    {
+        AsyncOutputStream out = installedOut;
+        AsyncOutputStream err = installedErr;
+        return (out == null ? 0 : out.getDroppedBytes()) + (err == null ? 0 : err.getDroppedBytes());
+    }
+}
@@ -0,0 +1,232 @@
+package org.skife.gressil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * A cgroup v2 group to place a daemon in, see {@link Daemon#withCgroup(Cgroup)}. The group is
+ * created if need be, and its limits written, before the daemon is spawned. The daemon is moved
+ * into it as soon as it has been spawned, before it has finished starting its JVM.
+ * <p/>
+ * We need write access to the group, and the cpu and memory controllers need to be available
+ * to it, which they are if whatever created the parent group enabled them, or if we are
+ * allowed to enable them ourselves.
+ */
+public class Cgroup
+{
+    /**
+     * Where the cgroup v2 hierarchy is normally mounted
+     */
+    public static final File ROOT = new File("/sys/fs/cgroup");
+
+    private final File root;
+    private final File path;
+    private final long cpuQuotaMicros;
+    private final long cpuPeriodMicros;
+    private final long memoryMaxBytes;
+
+    /**
+     * The group <code>name</code>, such as "services/worker", under {@link #ROOT}
+     */
+    public Cgroup(String name)
+    {
+        this(new File(ROOT, name));
+    }
+
+    public Cgroup(File path)
+    {
+        this(ROOT, path, 0, 0, 0);
+    }
+
+    private Cgroup(File root, File path, long cpuQuotaMicros, long cpuPeriodMicros, long memoryMaxBytes)
+    {
+        this.root = root;
+        this.path = path;
+        this.cpuQuotaMicros = cpuQuotaMicros;
+        this.cpuPeriodMicros = cpuPeriodMicros;
+        this.memoryMaxBytes = memoryMaxBytes;
+    }
+
+    /**
+     * Allow <code>quotaMicros</code> of CPU time every <code>periodMicros</code>, so 200000 of
+     * 100000 is two CPUs worth. Written to cpu.max.
+     */
+    public Cgroup withCpuMax(long quotaMicros, long periodMicros)
+    {
+        return new Cgroup(root, path, quotaMicros, periodMicros, memoryMaxBytes);
+    }
+
+    /**
+     * Written to memory.max
+     */
+    public Cgroup withMemoryMax(long bytes)
+    {
+        return new Cgroup(root, path, cpuQuotaMicros, cpuPeriodMicros, bytes);
+    }
+
+    public File getPath()
+    {
+        return path;
+    }
+
+    /**
+     * The group we are in, or null if we are not in a cgroup v2 hierarchy mounted at {@link #ROOT}
+     */
+    static Cgroup self()
+    {
+        return self(ROOT, new File("/proc/self/cgroup"));
+    }
+
+    /**
+     * The group <code>procCgroup</code>, as /proc/self/cgroup, says we are in, in the hierarchy
+     * mounted at <code>root</code>
+     */
+    static Cgroup self(File root, File procCgroup)
+    {
+        if (!new File(root, "cgroup.controllers").exists()) {
+            return null;
+        }
+        try {
+            for (String line : Files.readAllLines(procCgroup.toPath(), StandardCharsets.UTF_8)) {
+                // the v2 hierarchy is the one with id 0 and no controllers listed
+                if (line.startsWith("0::")) {
+                    String name = line.substring(3);
+                    return new Cgroup(root, "/".equals(name) ? root : new File(root, name), 0, 0, 0);
+                }
+            }
+        }
+        catch (IOException e) {
+            // not Linux, or no procfs
+        }
+        return null;
+    }
+
+    /**
+     * The memory processes in the group may use, the least of the limit given to
+     * {@link #withMemoryMax(long)} and the memory.max of the group and those above it, or -1
+     * if there is no limit or we cannot tell. In a cgroup namespace, as in a container, our
+     * group is {@link #ROOT} and the container's limits are right there.
+     */
+    long getEffectiveMemoryMax()
+    {
+        long max = memoryMaxBytes > 0 ? memoryMaxBytes : -1;
+        for (File group = path; group != null; group = above(group)) {
+            String[] limit = read(new File(group, "memory.max"));
+            if (limit.length > 0 && !"max".equals(limit[0])) {
+                long bytes = Long.parseLong(limit[0]);
+                max = max < 0 ? bytes : Math.min(max, bytes);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * The CPUs worth of time processes in the group may use, the least of the quota given to
+     * {@link #withCpuMax(long, long)} and the cpu.max of the group and those above it, or -1 if
+     * there is no quota or we cannot tell
+     */
+    double getEffectiveCpus()
+    {
+        double max = cpuQuotaMicros > 0 ? (double) cpuQuotaMicros / cpuPeriodMicros : -1;
+        for (File group = path; group != null; group = above(group)) {
+            // "$MAX $PERIOD", where $MAX may be "max"
+            String[] limit = read(new File(group, "cpu.max"));
+            if (limit.length == 2 && !"max".equals(limit[0])) {
+                double cpus = Double.parseDouble(limit[0]) / Double.parseDouble(limit[1]);
+                max = max < 0 ? cpus : Math.min(max, cpus);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Create the group if it does not exist, and write its limits
+     */
+    void prepare() throws IOException
+    {
+        if (!path.isDirectory() && !path.mkdirs()) {
+            throw new IOException("unable to create cgroup " + path);
+        }
+        if (!new File(path, "cgroup.procs").exists()) {
+            // the kernel creates this in every group, without it we just made a directory
+            throw new IOException(path + " is not in a cgroup v2 hierarchy");
+        }
+        if (cpuQuotaMicros > 0) {
+            enable("cpu");
+            write("cpu.max", cpuQuotaMicros + " " + cpuPeriodMicros);
+        }
+        if (memoryMaxBytes > 0) {
+            enable("memory");
+            write("memory.max", String.valueOf(memoryMaxBytes));
+        }
+    }
+
+    /**
+     * Move <code>pid</code> into the group
+     */
+    void place(int pid) throws IOException
+    {
+        write("cgroup.procs", String.valueOf(pid));
+    }
+
+    private void enable(String controller)
+    {
+        try {
+            write(new File(path.getParentFile(), "cgroup.subtree_control"), "+" + controller);
+        }
+        catch (IOException e) {
+            // it may already be enabled, if not writing the limit will fail and say so
+        }
+    }
+
+    /**
+     * The group above <code>group</code>, or null once we have been through the root of the
+     * hierarchy. The host's root group has no limit files, so reading it finds nothing.
+     */
+    private File above(File group)
+    {
+        return group.equals(root) ? null : group.getParentFile();
+    }
+
+    /**
+     * The whitespace separated fields of <code>file</code>, none if it cannot be read, as groups
+     * not yet created and controllers not enabled have no such file
+     */
+    private static String[] read(File file)
+    {
+        try {
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            String line = lines.isEmpty() ? "" : lines.get(0).trim();
+            return line.isEmpty() ? new String[0] : line.split("\\s+");
+        }
+        catch (IOException e) {
+            return new String[0];
+        }
+    }
+
+    private void write(String file, String value) throws IOException
+    {
+        write(new File(path, file), value);
+    }
+
+    private static void write(File file, String value) throws IOException
+    {
+        try {
+            // one write(2) per value, cgroupfs does not accept them in pieces
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(value.getBytes(StandardCharsets.UTF_8));
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException e) {
+            throw new IOException(String.format("unable to write '%s' to %s: %s", value, file, e.getMessage()), e);
+        }
+    }
+}
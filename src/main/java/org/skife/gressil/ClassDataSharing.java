@@ -0,0 +1,305 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * Manages an AppCDS archive for spawned children. Until there is an archive, one child at a time
+ * dumps the classes it loaded when it exits (-XX:ArchiveClassesAtExit), into a file of its own
+ * next to the archive, and the others spawned meanwhile go without. The next spawn after the
+ * dumping child has gone moves its dump into place, and from then on children map the archive
+ * in at startup (-XX:SharedArchiveFile) instead of loading and verifying those classes again.
+ * So the first archive only appears once a child has exited: a daemon which runs until it is
+ * replaced hands the archive on to its replacement's successor.
+ * <p/>
+ * Which child is dumping is recorded beside the archive, and only looked at or changed while
+ * holding a lock on <code>archive.lock</code>, so this holds across every process spawning
+ * children with the same archive.
+ * <p/>
+ * The archive is only good for the class path and JVM it was dumped with, so we keep a stamp
+ * of both next to it, and throw the archive away when they no longer match. Dynamic archives
+ * need JDK 13 or later, and a class path made up only of jars (the JVM refuses to start if
+ * asked to archive with a non-empty directory on the class path), otherwise this adds nothing.
+ */
+class ClassDataSharing
+{
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+    private static final Logger log   = Logger.getLogger(ClassDataSharing.class.getName());
+
+    private static final String USE_ARCHIVE  = "-XX:SharedArchiveFile=";
+    private static final String DUMP_ARCHIVE = "-XX:ArchiveClassesAtExit=";
+
+    private static final String DUMP_SUFFIX  = ".tmp";
+    private static final String OWNER_SUFFIX = ".pid";
+
+    private static final AtomicInteger dumps = new AtomicInteger();
+
+    // the lock file keeps out other processes, this our own other threads
+    private static final Lock threads = new ReentrantLock();
+
+    private static volatile String skipped;
+
+    private final File   archive;
+    private final File   stamp;
+    private final File   lockFile;
+    private final String classPath;
+
+    private File dump;
+
+    ClassDataSharing(File archive)
+    {
+        this(archive, System.getProperty("java.class.path"));
+    }
+
+    ClassDataSharing(File archive, String classPath)
+    {
+        this.archive = archive;
+        this.stamp = new File(archive.getPath() + ".stamp");
+        this.lockFile = new File(archive.getPath() + ".lock");
+        this.classPath = classPath;
+    }
+
+    /**
+     * The JVM arguments for the next child to spawn, either to use the archive or to dump a new
+     * one, or none while another child is dumping. The archive is only an optimization, so if
+     * we cannot manage it the child just goes without.
+     * <p/>
+     * A dump handed out here is claimed until {@link #spawned(int)} is called, which must
+     * follow whether or not a child was spawned.
+     */
+    List<String> getJvmArgs()
+    {
+        String unsupported = unsupportedReason(classPath, JavaVersion.feature());
+        if (unsupported != null) {
+            if (!unsupported.equals(skipped)) {
+                skipped = unsupported;
+                log.info(format("not sharing class data via %s, %s", archive, unsupported));
+            }
+            return Collections.emptyList();
+        }
+
+        try {
+            int fd = lock();
+            try {
+                String current = currentStamp();
+                boolean dumping = collectDumps(current);
+                if (archive.exists() && stamp.exists() && current.equals(read(stamp))) {
+                    return Collections.singletonList(USE_ARCHIVE + archive.getAbsolutePath());
+                }
+
+                archive.delete();
+                if (dumping) {
+                    // the archive will come from that one
+                    return Collections.emptyList();
+                }
+
+                // missing or stale, have the child dump one of its own, unique to this spawn,
+                // and claim it for ourselves until we know the child's pid
+                dump = new File(format("%s.%d-%d%s", archive.getPath(), posix.getpid(), dumps.incrementAndGet(), DUMP_SUFFIX));
+                writeOwner(posix.getpid());
+                return Collections.singletonList(DUMP_ARCHIVE + dump.getAbsolutePath());
+            }
+            finally {
+                unlock(fd);
+            }
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            dump = null;
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Record which child, if any, was given the dump from {@link #getJvmArgs()}, so that it is
+     * only moved into place once that child has exited and the JVM has finished writing it. A
+     * <code>pid</code> of -1 says no child was spawned, and gives up the dump for another.
+     */
+    void spawned(int pid)
+    {
+        if (dump == null) {
+            return;
+        }
+        try {
+            int fd = lock();
+            try {
+                if (pid > 0) {
+                    writeOwner(pid);
+                }
+                else {
+                    owner(dump).delete();
+                    dump.delete();
+                }
+            }
+            finally {
+                unlock(fd);
+            }
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            owner(dump).delete();
+            dump.delete();
+        }
+        dump = null;
+    }
+
+    /**
+     * Move the dump of a child which has since exited into place as the archive, if it was
+     * dumped from the current class path and JVM, and clear away any others which are done.
+     * Must be called holding the lock.
+     *
+     * @return true if a child is still dumping, or about to be spawned to
+     */
+    private boolean collectDumps(String current) throws IOException
+    {
+        File[] siblings = archive.getAbsoluteFile().getParentFile().listFiles();
+        if (siblings == null) {
+            return false;
+        }
+        boolean dumping = false;
+        String prefix = archive.getName() + ".";
+        for (File owner : siblings) {
+            String name = owner.getName();
+            if (!name.startsWith(prefix) || !name.endsWith(DUMP_SUFFIX + OWNER_SUFFIX)) {
+                continue;
+            }
+
+            String[] contents = read(owner).split("\n", 2);
+            int pid;
+            try {
+                pid = Integer.parseInt(contents[0]);
+            }
+            catch (NumberFormatException e) {
+                pid = -1;
+            }
+            if (pid > 0 && !hasExited(pid)) {
+                dumping = true;
+                continue;
+            }
+
+            File finished = new File(owner.getParentFile(), name.substring(0, name.length() - OWNER_SUFFIX.length()));
+            if (finished.length() > 0 && contents.length == 2 && current.equals(contents[1])) {
+                // rename rather than write in place, children may have the old archive mapped
+                Files.move(finished.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.write(stamp.toPath(), current.getBytes(StandardCharsets.UTF_8));
+            }
+            finished.delete();
+            owner.delete();
+        }
+        return dumping;
+    }
+
+    /**
+     * Drop archive flags we may have inherited from our own command line, if we were spawned
+     * with them, so they can be replaced with the right ones for the next child.
+     */
+    static List<String> withoutArchiveArgs(List<String> argv)
+    {
+        List<String> rs = new ArrayList<String>(argv);
+        for (Iterator<String> i = rs.iterator(); i.hasNext(); ) {
+            String arg = i.next();
+            if (arg.startsWith(USE_ARCHIVE) || arg.startsWith(DUMP_ARCHIVE)) {
+                i.remove();
+            }
+        }
+        return rs;
+    }
+
+    /**
+     * Why class data cannot be shared for children on <code>classPath</code> under the given
+     * JVM, or null if it can
+     */
+    static String unsupportedReason(String classPath, int javaFeature)
+    {
+        if (javaFeature < 13) {
+            return "dynamic archives need JDK 13 or later";
+        }
+
+        for (String entry : classPath.split(File.pathSeparator)) {
+            if (new File(entry).isDirectory()) {
+                return format("the class path has a directory, %s, only jars can be archived", entry);
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasExited(int pid)
+    {
+        // a child of ours which has exited but not been reaped still answers to kill
+        Pointer info = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), WaitStatus.SIZEOF_SIGINFO);
+        int options = WaitStatus.WEXITED | WaitStatus.WNOHANG | WaitStatus.WNOWAIT;
+        if (posix.waitid(WaitStatus.P_PID, pid, info, options) == 0 && info.getInt(WaitStatus.SIGINFO_PID) == pid) {
+            return true;
+        }
+        return !ProcessWatcher.isAlive(pid);
+    }
+
+    private void writeOwner(int pid) throws IOException
+    {
+        Files.write(owner(dump).toPath(), (pid + "\n" + currentStamp()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Take the lock for this archive, against other threads and other processes
+     *
+     * @return the lock file's descriptor, to give to {@link #unlock(int)}
+     */
+    private int lock() throws IOException
+    {
+        threads.lock();
+        int fd = posix.open(lockFile.getAbsolutePath(), Fcntl.O_WRONLY | Fcntl.O_CREAT | Fcntl.O_CLOEXEC, 0644);
+        if (fd < 0) {
+            threads.unlock();
+            throw new IOException(format("unable to open %s: %s", lockFile, posix.strerror(Fcntl.errno())));
+        }
+        try {
+            Fcntl.lockExclusively(posix, fd);
+            return fd;
+        }
+        catch (IOException e) {
+            posix.close(fd);
+            threads.unlock();
+            throw e;
+        }
+    }
+
+    private static void unlock(int fd)
+    {
+        posix.close(fd);
+        threads.unlock();
+    }
+
+    private static File owner(File dump)
+    {
+        return new File(dump.getPath() + OWNER_SUFFIX);
+    }
+
+    private static String read(File file) throws IOException
+    {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private String currentStamp()
+    {
+        return System.getProperty("java.home") + "\n"
+               + System.getProperty("java.vm.version") + "\n"
+               + classPath + "\n";
+    }
+}
@@ -0,0 +1,255 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Arrays.asList;
+
+/**
+ * A Unix domain socket a daemon listens on beside its pidfile, see
+ * {@link Daemon#withControlSocket()}, for asking it how it is doing without going through
+ * signals or standing up an HTTP server.
+ * <p/>
+ * The protocol is one request per connection. The client sends a line of whitespace separated
+ * words, a command and its arguments. The daemon replies with a line saying <code>OK</code>, or
+ * <code>ERROR</code> and a message, then the command's output, then closes the connection.
+ * <p/>
+ * Built in commands are <code>status</code>, <code>uptime</code>, <code>heap</code>,
+ * <code>gc</code>, <code>threads</code> and <code>commands</code>. Daemons add their own with
+ * {@link #register(String, Handler)}. Commands are handled one at a time on a single thread,
+ * so handlers should be quick.
+ */
+public class ControlSocket
+{
+    public interface Handler
+    {
+        /**
+         * @return the command's output; exceptions are reported to the client as errors
+         */
+        String handle(List<String> args) throws Exception;
+    }
+
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    private static final int  MAX_REQUEST     = 4096;
+    private static final long SERVER_TIMEOUT  = 1000;
+    private static final long CLIENT_TIMEOUT  = 5000;
+
+    private static final Map<String, Handler> handlers = new ConcurrentHashMap<String, Handler>();
+
+    static {
+        register("status", new Handler()
+        {
+            @Override
+            public String handle(List<String> args)
+            {
+                return String.format("running pid=%d uptime_ms=%d\n", posix.getpid(),
+                                     ManagementFactory.getRuntimeMXBean().getUptime());
+            }
+        });
+        register("uptime", new Handler()
+        {
+            @Override
+            public String handle(List<String> args)
+            {
+                return ManagementFactory.getRuntimeMXBean().getUptime() + "\n";
+            }
+        });
+        register("heap", new Handler()
+        {
+            @Override
+            public String handle(List<String> args)
+            {
+                MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+                MemoryUsage non_heap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+                return String.format("heap used=%d committed=%d max=%d\nnon_heap used=%d committed=%d\n",
+                                     heap.getUsed(), heap.getCommitted(), heap.getMax(),
+                                     non_heap.getUsed(), non_heap.getCommitted());
+            }
+        });
+        register("gc", new Handler()
+        {
+            @Override
+            public String handle(List<String> args)
+            {
+                StringBuilder out = new StringBuilder();
+                for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                    out.append(String.format("%s count=%d time_ms=%d\n",
+                                             gc.getName().replace(' ', '_'), gc.getCollectionCount(), gc.getCollectionTime()));
+                }
+                return out.toString();
+            }
+        });
+        register("threads", new Handler()
+        {
+            @Override
+            public String handle(List<String> args)
+            {
+                ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                return String.format("live=%d daemon=%d peak=%d started=%d\n",
+                                     threads.getThreadCount(), threads.getDaemonThreadCount(),
+                                     threads.getPeakThreadCount(), threads.getTotalStartedThreadCount());
+            }
+        });
+        register("commands", new Handler()
+        {
+            @Override
+            public String handle(List<String> args)
+            {
+                StringBuilder out = new StringBuilder();
+                for (String name : new TreeMap<String, Handler>(handlers).keySet()) {
+                    out.append(name).append('\n');
+                }
+                return out.toString();
+            }
+        });
+    }
+
+    private ControlSocket()
+    {
+    }
+
+    /**
+     * Handle <code>command</code> with <code>handler</code>, replacing any existing handler,
+     * built in ones included
+     */
+    public static void register(String command, Handler handler)
+    {
+        handlers.put(command, handler);
+    }
+
+    /**
+     * Send <code>command</code> to the daemon listening on <code>socket</code>
+     *
+     * @return the command's output
+     * @throws IOException if the daemon cannot be reached, or replies with an error
+     */
+    public static String query(File socket, String command, String... args) throws IOException
+    {
+        StringBuilder request = new StringBuilder(command);
+        for (String arg : args) {
+            request.append(' ').append(arg);
+        }
+        request.append('\n');
+
+        int fd = UnixSocket.connect(posix, socket);
+        try {
+            UnixSocket.setTimeout(posix, fd, CLIENT_TIMEOUT);
+            UnixSocket.writeAll(posix, fd, request.toString().getBytes(StandardCharsets.UTF_8));
+            String reply = new String(UnixSocket.readAll(posix, fd), StandardCharsets.UTF_8);
+
+            int eol = reply.indexOf('\n');
+            String status = eol < 0 ? reply : reply.substring(0, eol);
+            if (!"OK".equals(status)) {
+                throw new IOException(status.startsWith("ERROR ") ? status.substring(6) : "bad reply: " + status);
+            }
+            return reply.substring(eol + 1);
+        }
+        finally {
+            posix.close(fd);
+        }
+    }
+
+    /**
+     * Listen on <code>path</code>, replacing any socket left there, for the life of the process
+     */
+    static void open(final File path) throws IOException
+    {
+        if (path.exists() && !path.delete()) {
+            throw new IOException("unable to remove old socket " + path);
+        }
+        final int fd = UnixSocket.listen(posix, path);
+        final Object key = fileKey(path);
+
+        Thread server = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                serve(fd);
+            }
+        }, "gressil-control");
+        server.setDaemon(true);
+        server.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // after a handoff the path belongs to our replacement's socket
+                if (key != null && key.equals(fileKey(path))) {
+                    path.delete();
+                }
+            }
+        }));
+    }
+
+    private static void serve(int listener)
+    {
+        while (true) {
+            int fd = UnixSocket.accept(posix, listener);
+            if (fd < 0) {
+                if (Fcntl.errno() == Fcntl.EINTR) {
+                    continue;
+                }
+                System.err.println("control socket: " + posix.strerror(Fcntl.errno()));
+                return;
+            }
+            try {
+                UnixSocket.setTimeout(posix, fd, SERVER_TIMEOUT);
+                String request = UnixSocket.readLine(posix, fd, MAX_REQUEST);
+                if (request != null) {
+                    UnixSocket.writeAll(posix, fd, respond(request).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            catch (IOException e) {
+                // the client went away
+            }
+            finally {
+                posix.close(fd);
+            }
+        }
+    }
+
+    static String respond(String request)
+    {
+        List<String> words = new ArrayList<String>(asList(request.trim().split("\\s+")));
+        Handler handler = handlers.get(words.get(0));
+        if (handler == null) {
+            return "ERROR unknown command: " + words.get(0) + "\n";
+        }
+        try {
+            String output = handler.handle(words.subList(1, words.size()));
+            return "OK\n" + (output == null ? "" : output);
+        }
+        catch (Exception e) {
+            String message = e.getMessage() == null ? e.toString() : e.getMessage();
+            return "ERROR " + message.replace('\n', ' ') + "\n";
+        }
+    }
+
+    private static Object fileKey(File path)
+    {
+        try {
+            return Files.readAttributes(path.toPath(), BasicFileAttributes.class).fileKey();
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -1,53 +1,90 @@
 package org.skife.gressil;
 
 import jnr.ffi.Library;
+import jnr.ffi.Memory;
 import jnr.ffi.Pointer;
 import jnr.ffi.byref.IntByReference;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintStream;
-import java.nio.charset.StandardCharsets;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
 
 import static java.lang.String.format;
 import static java.util.Arrays.asList;
 
 public class Daemon
 {
-    private final List<String> programArgs;
-    private final File pidfile;
-    private final File out;
-    private final File err;
-    private final List<String> extraVmArgs;
-    private final List<String> extraProgramArgs;
+    private final Settings settings;
+
+    // worked out on first spawn, Daemon is otherwise immutable. Shared with its instances, as
+    // the argv does not depend on the instance
+    private final AtomicReference<SpawnPlan> plan;
+
+    private static final String HANDOFF_ENV_NAME = Daemon.class.getName() + ".handoff";
 
     private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
 
+    private static final Logger log = Logger.getLogger(Daemon.class.getName());
+
+    // the child's side of its startup, filled in as it goes
+    private static final StartupReport startup = new StartupReport();
+
+    // spawning blocks in native code, so these are platform threads even where virtual ones exist
+    private static final ThreadFactory spawnThreads = new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "gressil-spawn");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private static final ExecutorService asyncSpawns = Executors.newCachedThreadPool(spawnThreads);
+
+    private static final int SIGTERM = 15;
+    private static final int SIGKILL = 9;
+
+    /**
+     * How long {@link #stop(long, TimeUnit)} waits for a process to go away after SIGKILL
+     */
+    public static final long KILL_GRACE_MILLIS = 5000;
+
     public Daemon()
     {
-        this(null,
-             null,
-             new File("/dev/null"),
-             new File("/dev/null"),
-             Collections.<String>emptyList(),
-             Collections.<String>emptyList());
+        this(new Settings());
+    }
+
+    private Daemon(Settings settings)
+    {
+        this(settings, new AtomicReference<SpawnPlan>());
     }
 
-    private Daemon(List<String> argv, File pidfile, File out, File err, List<String> extraVmArgs, List<String> extraProgramArgs)
+    private Daemon(Settings settings, AtomicReference<SpawnPlan> plan)
     {
-        this.programArgs = argv;
-        this.pidfile = pidfile;
-        this.out = out;
-        this.err = err;
-        this.extraVmArgs = extraVmArgs;
-        this.extraProgramArgs = extraProgramArgs;
+        this.settings = settings;
+        this.plan = plan;
     }
 
     /**
@@ -69,89 +106,681 @@ public class Daemon
 
     public Daemon withArgv(List<String> args)
     {
-        return new Daemon(args, pidfile, out, err, extraVmArgs, extraProgramArgs);
+        Settings copy = settings.copy();
+        copy.programArgs = args;
+        return new Daemon(copy);
     }
 
     public Daemon withExtraJvmArgs(List<String> extraVmArgs)
     {
-        return new Daemon(programArgs, pidfile, out, err, extraVmArgs, extraProgramArgs);
+        Settings copy = settings.copy();
+        copy.extraVmArgs = extraVmArgs;
+        return new Daemon(copy);
     }
 
     public Daemon withExtraJvmArgs(String... extraVmArgs)
     {
-        return new Daemon(programArgs, pidfile, out, err, asList(extraVmArgs), extraProgramArgs);
+        Settings copy = settings.copy();
+        copy.extraVmArgs = asList(extraVmArgs);
+        return new Daemon(copy);
     }
 
     public Daemon withExtraMainArgs(List<String> extraProgramArgs)
     {
-        return new Daemon(programArgs, pidfile, out, err, extraVmArgs, extraProgramArgs);
+        Settings copy = settings.copy();
+        copy.extraProgramArgs = extraProgramArgs;
+        return new Daemon(copy);
     }
 
     public Daemon withExtraMainArgs(String... extraProgramArgs)
     {
-        return new Daemon(programArgs, pidfile, out, err, extraVmArgs, asList(extraProgramArgs));
+        Settings copy = settings.copy();
+        copy.extraProgramArgs = asList(extraProgramArgs);
+        return new Daemon(copy);
     }
 
     public Daemon withPidFile(File pidfile)
     {
-        return new Daemon(programArgs, pidfile, out, err, extraVmArgs, extraProgramArgs);
+        Settings copy = settings.copy();
+        copy.pidfile = pidfile;
+        return new Daemon(copy);
     }
 
     public Daemon withStdout(File out)
     {
-        return new Daemon(programArgs, pidfile, out, err, extraVmArgs, extraProgramArgs);
+        Settings copy = settings.copy();
+        copy.out = out;
+        return new Daemon(copy);
+    }
+
+    public Daemon withStdin(File in)
+    {
+        Settings copy = settings.copy();
+        copy.in = in;
+        return new Daemon(copy);
     }
 
     public Daemon withStderr(File err)
     {
-        return new Daemon(programArgs, pidfile, out, err, extraVmArgs, extraProgramArgs);
+        Settings copy = settings.copy();
+        copy.err = err;
+        return new Daemon(copy);
+    }
+
+    /**
+     * Have the parent wait for the child to call {@link #notifyReady()} before the spawn is
+     * considered to have succeeded. The parent side of {@link #daemonize()} will then exit
+     * with 0 only once the child is ready, and with 1 if the child died or did not become ready
+     * within the timeout.
+     * <p/>
+     * The child must call {@link #notifyReady()} once it is up, or the parent will always time out.
+     * A timeout of zero, the default, means do not wait.
+     */
+    public Daemon withReadinessTimeout(long timeout, TimeUnit unit)
+    {
+        Settings copy = settings.copy();
+        copy.readyTimeoutMillis = unit.toMillis(timeout);
+        return new Daemon(copy);
+    }
+
+    /**
+     * Share class data between spawned children via an AppCDS archive at <code>archive</code>.
+     * Children spawned while there is no archive each dump one when they exit, and children
+     * spawned after the first of those has exited start from it, so a long running daemon
+     * only benefits from its replacement's replacement onwards. The archive is recreated if the
+     * class path or JVM changes. This requires JDK 13 or later and a class path of only jars,
+     * and is skipped, saying why in the log, otherwise.
+     */
+    public Daemon withClassDataSharing(File archive)
+    {
+        Settings copy = settings.copy();
+        copy.cdsArchive = archive;
+        return new Daemon(copy);
+    }
+
+    /**
+     * Make {@link #stop()} (and so <code>execute(DaemonCommand.stop)</code>) send SIGTERM and wait
+     * up to <code>timeout</code> for the daemon to exit, escalating to SIGKILL if it does not. See
+     * {@link #stop(long, TimeUnit)}. Without this stop sends SIGINT and returns straight away.
+     */
+    public Daemon withStopTimeout(long timeout, TimeUnit unit)
+    {
+        Settings copy = settings.copy();
+        copy.stopTimeoutMillis = unit.toMillis(timeout);
+        return new Daemon(copy);
+    }
+
+    /**
+     * Pass these bound listening sockets to the child, where {@link InheritedSockets#adopt()}
+     * returns them still bound and listening. Use with {@link #handoff()} to restart a daemon
+     * without closing its ports.
+     */
+    public Daemon withInheritedSockets(List<ServerSocketChannel> sockets)
+    {
+        Settings copy = settings.copy();
+        copy.inheritedSockets = sockets;
+        return new Daemon(copy);
+    }
+
+    public Daemon withInheritedSockets(ServerSocketChannel... sockets)
+    {
+        return withInheritedSockets(asList(sockets));
+    }
+
+    /**
+     * In the child, write System.out and System.err through ring buffers of
+     * <code>bufferBytes</code> each, written to the stdout and stderr files by background
+     * threads, so that printing does not wait on the disk. When a buffer is full writers either
+     * wait, or their output is dropped and counted in {@link #getDroppedOutputBytes()}. Whatever
+     * is buffered is written out when the JVM exits normally, but is lost if it is killed.
+     */
+    public Daemon withAsyncOutput(int bufferBytes, AsyncOutputStream.OverflowPolicy policy)
+    {
+        Settings copy = settings.copy();
+        copy.asyncOutputBytes = bufferBytes;
+        copy.overflowPolicy = policy;
+        return new Daemon(copy);
+    }
+
+    /**
+     * Have the child rotate its stdout and stderr files itself, rather than needing an external
+     * logrotate with copytruncate. The files are also reopened when the child gets SIGHUP.
+     */
+    public Daemon withLogRotation(LogRotation rotation)
+    {
+        Settings copy = settings.copy();
+        copy.logRotation = rotation;
+        return new Daemon(copy);
+    }
+
+    /**
+     * Set a resource limit for the child, as setrlimit(2) would. Use
+     * {@link ResourceLimit#UNLIMITED} for no limit. The limits are applied by the child as it
+     * becomes a daemon, and if it is not allowed to apply one it fails to start.
+     */
+    public Daemon withResourceLimit(ResourceLimit resource, long soft, long hard)
+    {
+        Map<ResourceLimit, long[]> limits = new EnumMap<ResourceLimit, long[]>(ResourceLimit.class);
+        limits.putAll(settings.resourceLimits);
+        limits.put(resource, new long[]{soft, hard});
+        Settings copy = settings.copy();
+        copy.resourceLimits = Collections.unmodifiableMap(limits);
+        return new Daemon(copy);
+    }
+
+    /**
+     * Place the child in a cgroup v2 group, which is set up before the child is spawned
+     */
+    public Daemon withCgroup(Cgroup cgroup)
+    {
+        Settings copy = settings.copy();
+        copy.cgroup = cgroup;
+        return new Daemon(copy);
+    }
+
+    /**
+     * Have the child listen on a Unix domain socket beside its pidfile, named as the pidfile
+     * with <code>.sock</code> added, which {@link #query(String, String...)} and
+     * <code>execute(DaemonCommand.query, ...)</code> talk to. See {@link ControlSocket}.
+     * Requires a pidfile.
+     */
+    public Daemon withControlSocket()
+    {
+        Settings copy = settings.copy();
+        copy.controlSocket = true;
+        return new Daemon(copy);
+    }
+
+    /**
+     * Size the child's JVM for the cgroup v2 memory and CPU limits it will run under, those of
+     * the group given to {@link #withCgroup(Cgroup)} or else our own, rather than passing on our
+     * own heap, garbage collector and processor count flags. See {@link SizingProfile}. Flags
+     * given to {@link #withExtraJvmArgs(List)} still win.
+     */
+    public Daemon withSizing(SizingProfile profile)
+    {
+        Settings copy = settings.copy();
+        copy.sizing = profile;
+        return new Daemon(copy);
+    }
+
+    /**
+     * Have the child publish {@link DaemonMetrics} to a memory-mapped file beside its pidfile,
+     * named as the pidfile with <code>.metrics</code> added, once a second. Read it with
+     * {@link #readMetrics()} or <code>execute(DaemonCommand.metrics)</code>. Requires a pidfile.
+     */
+    public Daemon withMetrics()
+    {
+        return withMetrics(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * As {@link #withMetrics()}, publishing every <code>interval</code>
+     *
+     * @throws IllegalArgumentException if there is a watchdog, and <code>interval</code> is more
+     *                                  than half its timeout
+     */
+    public Daemon withMetrics(long interval, TimeUnit unit)
+    {
+        checkHeartbeatInterval(unit.toMillis(interval), settings.watchdogTimeoutMillis);
+        Settings copy = settings.copy();
+        copy.metricsIntervalMillis = unit.toMillis(interval);
+        return new Daemon(copy);
+    }
+
+    /**
+     * Tell a daemon which is alive but stalled from a healthy one. The child publishes a
+     * heartbeat to its metrics file, see {@link #withMetrics()}, held back while any
+     * {@link Watchdog} check fails, and once it is older than <code>timeout</code>
+     * {@link #checkStatus()} reports {@link DaemonStatus#STATUS_STALLED} rather than
+     * {@link DaemonStatus#STATUS_RUNNING}. A {@link Supervisor} restarts a stalled daemon, after
+     * having it dump its threads to its stdout. Requires a pidfile.
+     * <p/>
+     * The heartbeat is published every quarter of the timeout, up to once a second, unless
+     * {@link #withMetrics(long, TimeUnit)} says otherwise.
+     *
+     * @throws IllegalArgumentException if metrics are published less often than twice per
+     *                                  <code>timeout</code>
+     */
+    public Daemon withWatchdog(long timeout, TimeUnit unit)
+    {
+        long timeout_millis = unit.toMillis(timeout);
+        if (timeout_millis <= 0) {
+            throw new IllegalArgumentException("watchdog timeout must be positive");
+        }
+        long interval = settings.metricsIntervalMillis > 0 ? settings.metricsIntervalMillis : Math.max(1, Math.min(1000, timeout_millis / 4));
+        checkHeartbeatInterval(interval, timeout_millis);
+        Settings copy = settings.copy();
+        copy.metricsIntervalMillis = interval;
+        copy.watchdogTimeoutMillis = timeout_millis;
+        return new Daemon(copy);
+    }
+
+    /**
+     * Spawn <code>instances</code> copies of this daemon, see {@link DaemonGroup}
+     *
+     * @throws IllegalArgumentException if <code>instances</code> is not positive
+     */
+    public DaemonGroup withInstances(int instances)
+    {
+        return new DaemonGroup(this, instances);
+    }
+
+    /**
+     * This daemon as instance <code>index</code> of a group, with the index inserted into the
+     * names of its pidfile and output files, and passed to it in the environment.
+     */
+    Daemon withInstance(int index)
+    {
+        Settings copy = settings.copy();
+        copy.pidfile = DaemonGroup.indexed(settings.pidfile, index);
+        copy.out = DaemonGroup.indexed(settings.out, index);
+        copy.err = DaemonGroup.indexed(settings.err, index);
+        copy.instance = index;
+        return new Daemon(copy, plan);
     }
 
     Status forkish() throws IOException
     {
         if (isDaemon()) {
-            posix.setsid();
+            return becomeDaemon();
+        }
+        else
+        {
+            return spawnUnlessRunning();
+        }
+    }
+
+    /**
+     * As {@link #forkish()}, but in the parent the spawn happens on another thread. The future
+     * completes once the child has been spawned, or once it is ready (or has failed or timed
+     * out) if there is a readiness timeout. In the child it is already complete.
+     * <p/>
+     * The child is reaped when it exits, so a launcher which outlives its children does not
+     * collect zombies. Do not wait for it yourself.
+     */
+    public Future<Status> forkishAsync() throws IOException
+    {
+        if (isDaemon()) {
+            return completed(becomeDaemon());
+        }
+        return asyncSpawns.submit(new Callable<Status>()
+        {
+            @Override
+            public Status call() throws Exception
+            {
+                return reapOnExit(spawnUnlessRunning());
+            }
+        });
+    }
 
-            OutputStream old_out = System.out;
-            OutputStream old_err = System.err;
+    /**
+     * A future which is already complete with <code>status</code>
+     */
+    static Future<Status> completed(final Status status)
+    {
+        FutureTask<Status> done = new FutureTask<Status>(new Callable<Status>()
+        {
+            @Override
+            public Status call()
+            {
+                return status;
+            }
+        });
+        done.run();
+        return done;
+    }
 
-            System.setOut(new PrintStream(new FileOutputStream(out, true)));
-            System.setErr(new PrintStream(new FileOutputStream(err, true)));
-            old_err.close();
-            old_out.close();
+    /**
+     * Spawn each of <code>daemons</code>, at most <code>parallelism</code> at a time, and wait
+     * for them all. Each future is complete on return, with the status of its daemon as for
+     * {@link #forkishAsync()}, or the exception spawning it threw. As there, each child is
+     * reaped when it exits.
+     *
+     * @throws IllegalArgumentException if <code>parallelism</code> is not positive
+     */
+    public static List<Future<Status>> spawnAll(List<Daemon> daemons, int parallelism) throws InterruptedException
+    {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive, not " + parallelism);
+        }
+        if (daemons.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Callable<Status>> launches = new ArrayList<Callable<Status>>();
+        for (final Daemon daemon : daemons) {
+            launches.add(new Callable<Status>()
+            {
+                @Override
+                public Status call() throws Exception
+                {
+                    return reapOnExit(daemon.spawnUnlessRunning());
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, daemons.size()), spawnThreads);
+        try {
+            return executor.invokeAll(launches);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    Status spawnUnlessRunning() throws IOException
+    {
+        if (settings.pidfile != null && new PidFile(settings.pidfile).getLockState() == PidFile.LockState.HELD) {
+            System.err.printf("%s is locked, the daemon is already running\n", settings.pidfile);
+            return Status.failed(-1, 1);
+        }
+        return spawn(Collections.<String, Integer>emptyMap());
+    }
 
-            if (pidfile != null) {
-                FileOutputStream p_out = new FileOutputStream(pidfile);
-                p_out.write(String.valueOf(posix.getpid()).getBytes());
-                p_out.close();
-                pidfile.deleteOnExit();
+    /**
+     * Wait for the child behind <code>status</code> from the shared watcher once it exits,
+     * unless there is no child or it has already been reaped while awaiting readiness.
+     */
+    static Status reapOnExit(Status status) throws IOException
+    {
+        boolean reaped = status.getReadiness() == Status.Readiness.FAILED && status.getExitCode() >= 0;
+        if (status.getChildPid() > 0 && !reaped) {
+            new SpawnedProcess(posix, status.getChildPid(), null, null, null).watch(ProcessWatcher.shared());
+        }
+        return status;
+    }
+
+    private Status becomeDaemon() throws IOException
+    {
+        // stdin, stdout, and stderr were set up when we were spawned, and we are normally
+        // in our own session already, this is for libcs without POSIX_SPAWN_SETSID
+        startup.mark(StartupReport.Phase.DAEMON_ENTERED);
+        startup.mark(StartupReport.Phase.JVM_STARTED, ManagementFactory.getRuntimeMXBean().getStartTime());
+        String requested = System.getenv(StartupReport.ENV_NAME);
+        if (requested != null) {
+            startup.mark(StartupReport.Phase.SPAWN_REQUESTED, Long.parseLong(requested));
+        }
+        posix.setsid();
+        ReadyPipe.adopt(posix);
+        applyResourceLimits();
+        if (settings.asyncOutputBytes > 0) {
+            AsyncOutputStream.install(settings.asyncOutputBytes, settings.overflowPolicy);
+        }
+        if (settings.logRotation != null) {
+            new LogRotator(posix, settings.logRotation, settings.out, settings.err).start();
+        }
+        startup.mark(StartupReport.Phase.STREAMS_REDIRECTED);
+
+        DaemonPool.awaitAssignment(posix);
+
+        if (settings.pidfile != null) {
+            final int pid = posix.getpid();
+            final PidFile pid_file = new PidFile(settings.pidfile);
+            if (!pid_file.acquire(pid, "true".equals(System.getenv(HANDOFF_ENV_NAME)))) {
+                System.err.printf("%s is locked, the daemon is already running\n", settings.pidfile);
+                System.exit(1);
             }
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // after a handoff the pidfile belongs to our replacement
+                    pid_file.deleteIfOurs(pid);
+                }
+            }));
+            startup.mark(StartupReport.Phase.PIDFILE_WRITTEN);
+        }
+        if (settings.controlSocket) {
+            ControlSocket.open(getControlSocket());
+        }
+        if (settings.watchdogTimeoutMillis > 0) {
+            Watchdog.registerDefaultChecks();
+        }
+        if (settings.metricsIntervalMillis > 0) {
+            final int pid = posix.getpid();
+            final File metrics_file = getMetricsFile();
+            DaemonMetrics.open(metrics_file, settings.metricsIntervalMillis, settings.watchdogTimeoutMillis).start();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        // after a handoff the file belongs to our replacement
+                        if (DaemonMetrics.read(metrics_file).getPid() == pid) {
+                            metrics_file.delete();
+                        }
+                    }
+                    catch (IOException e) {
+                        // already gone
+                    }
+                }
+            }));
+        }
+
+        return Status.child(posix.getpid()).withStartupReport(startup.copy());
+    }
 
-            return Status.child(posix.getpid());
+    private void applyResourceLimits() throws IOException
+    {
+        Pointer rlimit = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), 16);
+        for (Map.Entry<ResourceLimit, long[]> limit : settings.resourceLimits.entrySet()) {
+            rlimit.putLong(0, ResourceLimit.toNative(limit.getValue()[0]));
+            rlimit.putLong(8, ResourceLimit.toNative(limit.getValue()[1]));
+            if (posix.setrlimit(limit.getKey().getResource(), rlimit) != 0) {
+                throw new IOException(format("unable to set RLIMIT_%s: %s", limit.getKey(), posix.strerror(Fcntl.errno())));
+            }
         }
-        else
-        {
-            String[] envp = getEnv(Daemon.class.getName() + "=daemon");
-            List<String> argv = buildARGV(posix);
+    }
+
+    /**
+     * Spawn a replacement for this daemon, whether or not we are a daemon ourselves. Configure
+     * the sockets to pass on with {@link #withInheritedSockets(List)}, and a readiness timeout so
+     * that this returns once the replacement is ready to take over. Once it has, stop accepting
+     * on the sockets, finish what is in flight, and exit. The replacement takes over the pidfile.
+     */
+    public Status handoff() throws IOException
+    {
+        // the replacement writes the pidfile straight away, and takes the lock once we exit
+        return spawn(Collections.<String, Integer>emptyMap(), asList(HANDOFF_ENV_NAME + "=true"));
+    }
+
+    /**
+     * Spawn the child. Each entry in <code>inherit</code> maps an environment variable name to
+     * a descriptor in this process; the child gets a copy of the descriptor, and the variable
+     * is set to the descriptor number it has in the child.
+     */
+    Status spawn(Map<String, Integer> inherit) throws IOException
+    {
+        return spawn(inherit, Collections.<String>emptyList());
+    }
+
+    /**
+     * Spawn the child, with <code>extraEnv</code> (NAME=value) added to its environment
+     */
+    Status spawn(Map<String, Integer> inherit, List<String> extraEnv) throws IOException
+    {
+        StartupReport report = new StartupReport();
+        report.mark(StartupReport.Phase.SPAWN_REQUESTED);
+        ClassDataSharing cds = settings.cdsArchive != null ? new ClassDataSharing(settings.cdsArchive) : null;
+        SpawnPlan plan = plan(report, cds);
+        if (settings.cgroup != null) {
+            try {
+                settings.cgroup.prepare();
+            }
+            catch (IOException e) {
+                if (cds != null) {
+                    cds.spawned(-1);
+                }
+                throw e;
+            }
+        }
+
+        IntByReference child_pid = new IntByReference();
+
+        ReadyPipe ready = settings.readyTimeoutMillis > 0 ? ReadyPipe.open(posix) : null;
+        SpawnFileActions fileActions = new SpawnFileActions(posix);
+        SpawnAttributes attributes = new SpawnAttributes(posix);
+        int rs;
+        try {
+            int append = Fcntl.O_WRONLY | Fcntl.O_CREAT | Fcntl.O_APPEND;
+            fileActions.open(0, settings.in, Fcntl.O_RDONLY, 0)
+                       .open(1, settings.out, append, 0644)
+                       .open(2, settings.err, append, 0644);
+
+            Map<String, Integer> fds = new LinkedHashMap<String, Integer>(inherit);
+            if (ready != null) {
+                fds.put(ReadyPipe.ENV_NAME, ready.getWriteFd());
+            }
+
+            List<String> env = new ArrayList<String>(extraEnv);
+            env.add(Daemon.class.getName() + "=daemon");
 
-            jnr.ffi.Runtime runtime = jnr.ffi.Runtime.getSystemRuntime();
-            Pointer NULL = Pointer.wrap(runtime, 0L);
-            IntByReference child_pid = new IntByReference();
+            // sockets go first, at 3 and up, as systemd would pass them
+            List<Integer> sources = new ArrayList<Integer>();
+            for (ServerSocketChannel socket : settings.inheritedSockets) {
+                sources.add(InheritedSockets.fdOf(socket));
+            }
+            if (!sources.isEmpty()) {
+                env.add(InheritedSockets.LISTEN_FDS + "=" + sources.size());
+            }
+            if (settings.instance >= 0) {
+                env.add(DaemonGroup.ENV_NAME + "=" + settings.instance);
+            }
+            env.add(StartupReport.ENV_NAME + "=" + report.getTimestamp(StartupReport.Phase.SPAWN_REQUESTED));
+            for (Map.Entry<String, Integer> fd : fds.entrySet()) {
+                env.add(fd.getKey() + "=" + (InheritedSockets.FIRST_FD + sources.size()));
+                sources.add(fd.getValue());
+            }
+            fileActions.inherit(sources, InheritedSockets.FIRST_FD);
+            report.mark(StartupReport.Phase.ENV_BUILT);
+
+            rs = plan.spawn(posix, child_pid, fileActions.getPointer(), attributes.getPointer(), env);
+        }
+        finally {
+            fileActions.destroy();
+            attributes.destroy();
+            if (ready != null) {
+                ready.closeWriteEnd();
+            }
+        }
 
-            int rs = posix.posix_spawnp(child_pid, argv.get(0), NULL, NULL,
-                                        argv.toArray(new String[argv.size()]), envp);
-            if (rs != 0) {
-                throw new RuntimeException(posix.strerror(rs));
+        if (rs != 0) {
+            if (ready != null) {
+                ready.close();
+            }
+            if (cds != null) {
+                cds.spawned(-1);
             }
-            return Status.parent(child_pid.getValue());
+            throw new RuntimeException(posix.strerror(rs));
         }
+        report.mark(StartupReport.Phase.SPAWNED);
+        if (cds != null) {
+            cds.spawned(child_pid.getValue());
+        }
+        if (settings.cgroup != null) {
+            try {
+                settings.cgroup.place(child_pid.getValue());
+            }
+            catch (IOException e) {
+                // better not to run at all than to run unconstrained
+                posix.kill(child_pid.getValue(), SIGKILL);
+                posix.waitpid(child_pid.getValue(), new IntByReference(), 0);
+                if (ready != null) {
+                    ready.close();
+                }
+                throw e;
+            }
+        }
+        Status status = ready != null
+                        ? ready.await(child_pid.getValue(), settings.readyTimeoutMillis, report)
+                        : Status.parent(child_pid.getValue());
+        log.fine(format("spawned pid %d, %s: %s", child_pid.getValue(), status.getReadiness(), report));
+        return status.withStartupReport(report);
+    }
+
+    /**
+     * The argv and inherited environment, which only need working out once per Daemon. The argv
+     * is worked out afresh each time when class data sharing is on, as it depends on whether
+     * the archive has been created yet.
+     */
+    private SpawnPlan plan(StartupReport report, ClassDataSharing cds)
+    {
+        SpawnPlan current = plan.get();
+        List<String> argv = current == null || cds != null ? buildARGV(posix, cds) : null;
+        report.mark(StartupReport.Phase.ARGV_BUILT);
+        if (current == null) {
+            current = new SpawnPlan(argv);
+        }
+        else if (argv != null) {
+            current = current.withArgv(argv);
+        }
+        plan.set(current);
+        return current;
     }
 
     public void daemonize() throws IOException
     {
-        if (forkish().isParent()) {
-            System.exit(0);
+        Status status = forkish();
+        if (status.isParent()) {
+            switch (status.getReadiness()) {
+                case FAILED:
+                    System.err.printf("daemon failed to start, exit code %d\n", status.getExitCode());
+                    System.exit(1);
+                    break;
+                case TIMED_OUT:
+                    System.err.printf("daemon (pid %d) did not become ready in time\n", status.getChildPid());
+                    System.exit(1);
+                    break;
+                default:
+                    System.exit(0);
+            }
+        }
+    }
+
+    /**
+     * Tell the parent which spawned us that we are up and ready, if it asked to be told via
+     * {@link #withReadinessTimeout(long, TimeUnit)}. It is safe to call this more than once,
+     * or when not running as a daemon.
+     */
+    public static void notifyReady()
+    {
+        if (startup.getTimestamp(StartupReport.Phase.READY) < 0) {
+            startup.mark(StartupReport.Phase.READY);
+            log.fine("ready: " + startup);
         }
+        ReadyPipe.notifyReady(posix, startup);
+    }
+
+    /**
+     * In a daemon, run <code>handler</code> each time it receives <code>signal</code>, such as
+     * HUP to reload configuration. All handlers run one at a time on a single thread, those for
+     * the same signal in the order they were added. Handlers for TERM run before the JVM shuts
+     * down as usual.
+     *
+     * @return false if the JVM does not allow the signal to be handled
+     */
+    public static boolean onSignal(DaemonSignal signal, Runnable handler)
+    {
+        return Signals.handle(signal.name(), handler);
+    }
+
+    /**
+     * In a daemon, when each phase of its startup finished, including when its parent asked
+     * for it to be spawned. Phases it has not reached yet are missing.
+     */
+    public static StartupReport getStartupReport()
+    {
+        return startup.copy();
+    }
+
+    /**
+     * The bytes of output dropped because the buffers set up by
+     * {@link #withAsyncOutput(int, AsyncOutputStream.OverflowPolicy)} were full
+     */
+    public static long getDroppedOutputBytes()
+    {
+        return AsyncOutputStream.getInstalledDroppedBytes();
     }
 
     public static boolean isDaemon()
@@ -160,15 +789,30 @@ public class Daemon
     }
 
     public List<String> buildARGV(MicroC posix)
+    {
+        ClassDataSharing cds = settings.cdsArchive != null ? new ClassDataSharing(settings.cdsArchive) : null;
+        try {
+            return buildARGV(posix, cds);
+        }
+        finally {
+            if (cds != null) {
+                // nothing is spawned with it, so any dump it was given is free for the next spawn
+                cds.spawned(-1);
+            }
+        }
+    }
+
+    private List<String> buildARGV(MicroC posix, ClassDataSharing cds)
     {
         List<String> argv;
         String os = System.getProperty("os.name");
-        if (this.programArgs != null) {
-            // if we had args passed to us, don't mess around, just use them
-            argv = new JvmBasedArgvFinder(this.programArgs).getArgv();
+        if ("Linux".equals(os)) {
+            // exact, with the given args, if any, in place of our own
+            argv = new LinuxArgvFinder(settings.programArgs).getArgv();
         }
-        else if ("Linux".equals(os)) {
-            argv = new LinuxArgvFinder(posix.getpid()).getArgv();
+        else if (settings.programArgs != null) {
+            // if we had args passed to us, don't mess around, just use them
+            argv = new JvmBasedArgvFinder(settings.programArgs).getArgv();
         }
 //        else if ("Mac OS X".equals(os)) {
 //            argv = new MacARGVFinder().getArgv();
@@ -179,24 +823,66 @@ public class Daemon
 //        }
         else
         {
-            argv = new JvmBasedArgvFinder(this.programArgs).getArgv();
+            argv = new JvmBasedArgvFinder(settings.programArgs).getArgv();
+        }
+
+        List<String> vm_args = settings.extraVmArgs;
+        if (settings.sizing != null) {
+            argv = SizingProfile.withoutSizingArgs(argv);
+            vm_args = new ArrayList<String>(sizingArgs());
+            vm_args.addAll(settings.extraVmArgs);
+        }
+        if (cds != null) {
+            argv = ClassDataSharing.withoutArchiveArgs(argv);
+            vm_args = new ArrayList<String>(vm_args);
+            vm_args.addAll(cds.getJvmArgs());
+        }
+        if (!settings.inheritedSockets.isEmpty()) {
+            vm_args = new ArrayList<String>(vm_args);
+            for (String arg : InheritedSockets.getJvmArgs()) {
+                if (!argv.contains(arg) && !vm_args.contains(arg)) {
+                    vm_args.add(arg);
+                }
+            }
         }
 
-        if (this.extraVmArgs.size() > 0) {
-            List<String> new_argv = new ArrayList<String>(argv.size() + extraVmArgs.size());
+        if (vm_args.size() > 0) {
+            List<String> new_argv = new ArrayList<String>(argv.size() + vm_args.size());
             new_argv.add(argv.get(0));
-            new_argv.addAll(extraVmArgs);
+            new_argv.addAll(vm_args);
             new_argv.addAll(argv.subList(1, argv.size()));
             argv = new_argv;
         }
 
-        if (this.extraProgramArgs.size() > 0) {
-            argv.addAll(extraProgramArgs);
+        if (settings.extraProgramArgs.size() > 0) {
+            argv.addAll(settings.extraProgramArgs);
         }
 
         return argv;
     }
 
+    /**
+     * A heartbeat published less often than twice per watchdog timeout would be taken for a
+     * stall between publishes, or whenever a publish ran late
+     */
+    private static void checkHeartbeatInterval(long intervalMillis, long watchdogTimeoutMillis)
+    {
+        if (watchdogTimeoutMillis > 0 && intervalMillis * 2 > watchdogTimeoutMillis) {
+            throw new IllegalArgumentException(format("metrics interval of %dms is too long for a watchdog timeout of %dms, it can be at most half",
+                                                      intervalMillis, watchdogTimeoutMillis));
+        }
+    }
+
+    private List<String> sizingArgs()
+    {
+        Cgroup group = settings.cgroup != null ? settings.cgroup : Cgroup.self();
+        long memory = group == null ? -1 : group.getEffectiveMemoryMax();
+        double cpus = group == null ? -1 : group.getEffectiveCpus();
+        List<String> args = settings.sizing.getJvmArgs(memory, cpus, JavaVersion.feature());
+        log.fine(format("sizing %s for memory=%d cpus=%s: %s", settings.sizing, memory, cpus, args));
+        return args;
+    }
+
     /**
      * Creates vm arguments for jdwp remote debugging, suspending the VM on startup
      *
@@ -217,15 +903,36 @@ public class Daemon
         return asList("-Xdebug", format("-Xrunjdwp:transport=dt_socket,server=y,suspend=n,address=%d", port));
     }
 
+    /**
+     * Our environment plus <code>additions</code>, which replace any variables of the same name.
+     * Variables which only describe how this process was spawned, such as which descriptors it
+     * inherited, are not passed on.
+     */
     public static String[] getEnv(String... additions)
     {
-        String[] envp = new String[System.getenv().size() + additions.length];
-        int i = 0;
+        Set<String> replaced = new HashSet<String>();
+        for (String addition : additions) {
+            replaced.add(addition.substring(0, Math.max(addition.indexOf('='), 0)));
+        }
+
+        List<String> envp = new ArrayList<String>(System.getenv().size() + additions.length);
         for (Map.Entry<String, String> pair : System.getenv().entrySet()) {
-            envp[i++] = new StringBuilder(pair.getKey()).append("=").append(pair.getValue()).toString();
+            String name = pair.getKey();
+            if (replaced.contains(name) || isSpawnVariable(name)) {
+                continue;
+            }
+            envp.add(new StringBuilder(name).append("=").append(pair.getValue()).toString());
         }
-        System.arraycopy(additions, 0, envp, envp.length - 1, additions.length);
-        return envp;
+        envp.addAll(asList(additions));
+        return envp.toArray(new String[envp.size()]);
+    }
+
+    private static boolean isSpawnVariable(String name)
+    {
+        return name.startsWith("org.skife.gressil.")
+               || name.equals(InheritedSockets.LISTEN_FDS)
+               || name.equals(InheritedSockets.LISTEN_PID)
+               || name.equals("LISTEN_FDNAMES");
     }
 
     /**
@@ -241,20 +948,18 @@ public class Daemon
      */
     public DaemonStatus checkStatus()
     {
-        if (this.pidfile == null) {
+        if (settings.pidfile == null) {
             throw new IllegalStateException("No pidfile specified, cannot check status!");
         }
-        if (!pidfile.exists()) {
+        PidFile pid_file = new PidFile(settings.pidfile);
+        if (!pid_file.exists()) {
             return DaemonStatus.STATUS_NOT_RUNNING;
         }
 
         final int pid;
         try
         {
-            byte[] content = Files.readAllBytes(pidfile.toPath());
-            String s = new String(content, StandardCharsets.UTF_8).trim();
-            pid = Integer.parseInt(s);
-
+            pid = pid_file.readPid();
         }
         catch (Exception e)
         {
@@ -262,9 +967,8 @@ public class Daemon
             return DaemonStatus.STATUS_UNKNOWN;
         }
 
-        int rs = posix.kill(pid, 0);
-        if (rs == 0) {
-            return DaemonStatus.STATUS_RUNNING;
+        if (isRunning(pid_file, pid)) {
+            return isStalled(pid) ? DaemonStatus.STATUS_STALLED : DaemonStatus.STATUS_RUNNING;
         }
         else
         {
@@ -272,6 +976,44 @@ public class Daemon
         }
     }
 
+    /**
+     * True if there is a watchdog and the daemon's heartbeat is too old. If there is no heartbeat
+     * yet, as while the daemon is starting, it is given the benefit of the doubt.
+     */
+    private boolean isStalled(int pid)
+    {
+        if (settings.watchdogTimeoutMillis <= 0) {
+            return false;
+        }
+        try {
+            return Watchdog.heartbeatAge(readMetrics(), pid, System.currentTimeMillis()) > settings.watchdogTimeoutMillis;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    long getWatchdogTimeoutMillis()
+    {
+        return settings.watchdogTimeoutMillis;
+    }
+
+    /**
+     * The lock says whether the daemon is running. Without a lock file, as for a daemon started
+     * by an older version, fall back to probing the pid, checking it has not been recycled.
+     */
+    static boolean isRunning(PidFile pid_file, int pid)
+    {
+        switch (pid_file.getLockState()) {
+            case HELD:
+                return pid_file.isSameProcess(pid);
+            case FREE:
+                return false;
+            default:
+                return posix.kill(pid, 0) == 0 && pid_file.isSameProcess(pid);
+        }
+    }
+
     public DaemonStatus stop()
     {
         /*
@@ -287,26 +1029,31 @@ public class Daemon
          150-199	reserved for application use
          200-254	reserved
          */
-        if (this.pidfile == null) {
+        if (settings.stopTimeoutMillis > 0) {
+            return stop(settings.stopTimeoutMillis, TimeUnit.MILLISECONDS).getStatus();
+        }
+        if (settings.pidfile == null) {
             throw new IllegalStateException("No pidfile specified, cannot stop!");
         }
-        if (!pidfile.exists()) {
+        PidFile pid_file = new PidFile(settings.pidfile);
+        if (!pid_file.exists()) {
             return DaemonStatus.STOP_NOT_RUNNING;
         }
 
         final int pid;
         try
         {
-            byte[] content = Files.readAllBytes(pidfile.toPath());
-            String s = new String(content, StandardCharsets.UTF_8).trim();
-            pid = Integer.parseInt(s);
-
+            pid = pid_file.readPid();
         }
         catch (Exception e)
         {
             System.err.println(e.getMessage());
             return DaemonStatus.STOP_GENERAL_ERROR;
         }
+        if (!isRunning(pid_file, pid)) {
+            // stale pidfile, the pid may well belong to something else by now
+            return DaemonStatus.STOP_NOT_RUNNING;
+        }
 
         int rs = posix.kill(pid, 2);
         if (rs == 0) {
@@ -318,7 +1065,153 @@ public class Daemon
         }
     }
 
+    /**
+     * Send the daemon SIGTERM and wait up to <code>drainTimeout</code> for it to exit. If it is
+     * still running after that it is sent SIGKILL, and given a further {@link #KILL_GRACE_MILLIS}
+     * to go away.
+     */
+    public StopResult stop(long drainTimeout, TimeUnit unit)
+    {
+        long start = System.nanoTime();
+        if (settings.pidfile == null) {
+            throw new IllegalStateException("No pidfile specified, cannot stop!");
+        }
+        PidFile pid_file = new PidFile(settings.pidfile);
+        if (!pid_file.exists()) {
+            return new StopResult(DaemonStatus.STOP_NOT_RUNNING, System.nanoTime() - start);
+        }
+
+        final int pid;
+        try
+        {
+            pid = pid_file.readPid();
+        }
+        catch (Exception e)
+        {
+            System.err.println(e.getMessage());
+            return new StopResult(DaemonStatus.STOP_GENERAL_ERROR, System.nanoTime() - start);
+        }
+        if (!isRunning(pid_file, pid)) {
+            return new StopResult(DaemonStatus.STOP_NOT_RUNNING, System.nanoTime() - start);
+        }
+
+        ProcessWatcher watcher = null;
+        try {
+            watcher = new ProcessWatcher();
+            if (posix.kill(pid, SIGTERM) != 0) {
+                return new StopResult(DaemonStatus.STOP_NOT_RUNNING, System.nanoTime() - start);
+            }
+            if (watcher.awaitExit(pid, drainTimeout, unit)) {
+                return new StopResult(DaemonStatus.STOP_SUCCESS, System.nanoTime() - start);
+            }
+
+            posix.kill(pid, SIGKILL);
+            if (watcher.awaitExit(pid, KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+                return new StopResult(DaemonStatus.STOP_KILLED, System.nanoTime() - start);
+            }
+            return new StopResult(DaemonStatus.STOP_TIMED_OUT, System.nanoTime() - start);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new StopResult(DaemonStatus.STOP_GENERAL_ERROR, System.nanoTime() - start);
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return new StopResult(DaemonStatus.STOP_GENERAL_ERROR, System.nanoTime() - start);
+        }
+        finally {
+            if (watcher != null) {
+                watcher.close();
+            }
+        }
+    }
+
+    /**
+     * Send <code>signal</code> to the running daemon, as named in the pidfile
+     */
+    public DaemonStatus signal(DaemonSignal signal)
+    {
+        if (settings.pidfile == null) {
+            throw new IllegalStateException("No pidfile specified, cannot signal!");
+        }
+        PidFile pid_file = new PidFile(settings.pidfile);
+        if (!pid_file.exists()) {
+            return DaemonStatus.SIGNAL_NOT_RUNNING;
+        }
+
+        final int pid;
+        try {
+            pid = pid_file.readPid();
+        }
+        catch (Exception e) {
+            System.err.println(e.getMessage());
+            return DaemonStatus.SIGNAL_GENERAL_ERROR;
+        }
+        if (!isRunning(pid_file, pid)) {
+            return DaemonStatus.SIGNAL_NOT_RUNNING;
+        }
+        if (posix.kill(pid, signal.getNumber()) != 0) {
+            System.err.println(posix.strerror(Fcntl.errno()));
+            return DaemonStatus.SIGNAL_GENERAL_ERROR;
+        }
+        return DaemonStatus.SIGNAL_SUCCESS;
+    }
+
+    /**
+     * Send <code>command</code> to the running daemon's control socket, see
+     * {@link #withControlSocket()}
+     *
+     * @return the command's output
+     */
+    public String query(String command, String... args) throws IOException
+    {
+        return ControlSocket.query(getControlSocket(), command, args);
+    }
+
+    /**
+     * What the running daemon last published to its metrics file, see {@link #withMetrics()}.
+     * Nothing is asked of the daemon, so this is cheap enough to call often. A daemon which
+     * has died without cleaning up leaves its last values, check {@link #checkStatus()} too.
+     *
+     * @throws IOException if there is no metrics file, or it cannot be read
+     */
+    public DaemonMetrics.Snapshot readMetrics() throws IOException
+    {
+        return DaemonMetrics.read(getMetricsFile());
+    }
+
+    File getPidFile()
+    {
+        return settings.pidfile;
+    }
+
+    private File getMetricsFile()
+    {
+        if (settings.pidfile == null) {
+            throw new IllegalStateException("No pidfile specified, cannot find metrics file!");
+        }
+        return DaemonMetrics.fileFor(settings.pidfile);
+    }
+
+    private File getControlSocket()
+    {
+        if (settings.pidfile == null) {
+            throw new IllegalStateException("No pidfile specified, cannot find control socket!");
+        }
+        return new File(settings.pidfile.getPath() + ".sock");
+    }
+
     public void execute(DaemonCommand cmd) throws IOException
+    {
+        execute(cmd, new String[0]);
+    }
+
+    /**
+     * As {@link #execute(DaemonCommand)}, with <code>args</code> for commands which take them.
+     * For <code>query</code> they are the control socket command and its arguments, defaulting
+     * to <code>status</code>.
+     */
+    public void execute(DaemonCommand cmd, String... args) throws IOException
     {
         final DaemonStatus status;
         switch (cmd) {
@@ -333,6 +1226,89 @@ public class Daemon
                 status = stop();
                 System.exit(status.getExitCode());
                 break;
+            case reload:
+                System.exit(signal(DaemonSignal.HUP).getExitCode());
+                break;
+            case dump:
+                System.exit(signal(DaemonSignal.QUIT).getExitCode());
+                break;
+            case signal:
+                DaemonSignal signal = null;
+                try {
+                    signal = DaemonSignal.valueOf(args[0].toUpperCase().replaceFirst("^SIG", ""));
+                }
+                catch (RuntimeException e) {
+                    System.err.println("signal needs one of " + Arrays.toString(DaemonSignal.values()));
+                    System.exit(2);
+                }
+                System.exit(signal(signal).getExitCode());
+                break;
+            case metrics:
+                status = checkStatus();
+                // a stalled daemon is when its metrics are wanted most
+                if (status != DaemonStatus.STATUS_RUNNING && status != DaemonStatus.STATUS_STALLED) {
+                    System.err.println("not running");
+                    System.exit(status.getExitCode());
+                }
+                try {
+                    System.out.print(readMetrics());
+                    System.exit(0);
+                }
+                catch (IOException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(DaemonStatus.STATUS_UNKNOWN.getExitCode());
+                }
+                break;
+            case query:
+                try {
+                    String command = args.length == 0 ? "status" : args[0];
+                    String[] rest = args.length == 0 ? args : Arrays.copyOfRange(args, 1, args.length);
+                    System.out.print(query(command, rest));
+                    System.exit(0);
+                }
+                catch (IOException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(1);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Everything a Daemon is configured with. The with* methods each change one thing on a copy.
+     */
+    private static final class Settings implements Cloneable
+    {
+        List<String>                     programArgs;
+        File                             pidfile;
+        File                             out              = new File("/dev/null");
+        File                             err              = new File("/dev/null");
+        List<String>                     extraVmArgs      = Collections.emptyList();
+        List<String>                     extraProgramArgs = Collections.emptyList();
+        long                             readyTimeoutMillis;
+        File                             cdsArchive;
+        File                             in               = new File("/dev/null");
+        long                             stopTimeoutMillis;
+        List<ServerSocketChannel>        inheritedSockets = Collections.emptyList();
+        int                              asyncOutputBytes;
+        AsyncOutputStream.OverflowPolicy overflowPolicy   = AsyncOutputStream.OverflowPolicy.BLOCK;
+        LogRotation                      logRotation;
+        int                              instance         = -1;
+        Map<ResourceLimit, long[]>       resourceLimits   = Collections.emptyMap();
+        Cgroup                           cgroup;
+        boolean                          controlSocket;
+        SizingProfile                    sizing;
+        long                             metricsIntervalMillis;
+        long                             watchdogTimeoutMillis;
+
+        Settings copy()
+        {
+            try {
+                return (Settings) clone();
+            }
+            catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
         }
     }
 }
@@ -2,5 +2,5 @@ package org.skife.gressil;
 
 public enum DaemonCommand
 {
-    start, stop, status
+    start, stop, status, query, reload, dump, signal, metrics
 }
@@ -0,0 +1,233 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Spawns several copies of a daemon, for instance one per NUMA node. Each instance gets its
+ * own pidfile and output files, named after the daemon's with the instance number inserted,
+ * so <code>worker.pid</code> becomes <code>worker-0.pid</code>, <code>worker-1.pid</code> and
+ * so on. The instance can find its number via {@link #getInstance()}.
+ * <p/>
+ * Like {@link Daemon#daemonize()}, the same code runs in every process:
+ * <pre>
+ * new Daemon().withMainArgs(args)
+ *             .withPidFile(new File("/var/run/worker.pid"))
+ *             .withInstances(2)
+ *             .withCpuSets(new int[]{0, 1, 2, 3}, new int[]{4, 5, 6, 7})
+ *             .withMemoryNodes(new int[]{0}, new int[]{1})
+ *             .daemonize();
+ * </pre>
+ * CPU sets and memory nodes are applied to the thread which spawns the instance, and so are
+ * inherited by the instance from its very first instruction. They are only supported on Linux.
+ */
+public class DaemonGroup
+{
+    static final String ENV_NAME = DaemonGroup.class.getName() + ".instance";
+
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    private final Daemon  daemon;
+    private final int     instances;
+    private final int[][] cpuSets;
+    private final int[][] memoryNodes;
+
+    DaemonGroup(Daemon daemon, int instances)
+    {
+        this(daemon, instances, new int[0][], new int[0][]);
+    }
+
+    private DaemonGroup(Daemon daemon, int instances, int[][] cpuSets, int[][] memoryNodes)
+    {
+        if (instances <= 0) {
+            throw new IllegalArgumentException("a group needs at least one instance, not " + instances);
+        }
+        this.daemon = daemon;
+        this.instances = instances;
+        this.cpuSets = cpuSets;
+        this.memoryNodes = memoryNodes;
+    }
+
+    /**
+     * Pin instance <code>i</code> to the CPUs in <code>cpuSets[i]</code>. If there are fewer sets
+     * than instances they are handed out round robin.
+     */
+    public DaemonGroup withCpuSets(int[]... cpuSets)
+    {
+        return new DaemonGroup(daemon, instances, cpuSets, memoryNodes);
+    }
+
+    /**
+     * Bind the memory of instance <code>i</code> to the NUMA nodes in <code>nodes[i]</code>. If
+     * there are fewer sets than instances they are handed out round robin.
+     */
+    public DaemonGroup withMemoryNodes(int[]... nodes)
+    {
+        return new DaemonGroup(daemon, instances, cpuSets, nodes);
+    }
+
+    /**
+     * In the parent, spawn every instance which is not already running, waiting for them to
+     * become ready if the daemon has a readiness timeout. Each future is complete on return,
+     * with the status of its instance or the exception spawning it threw, so one failing leaves
+     * the rest to be checked on or stopped. Instances are reaped when they exit, as for
+     * {@link Daemon#forkishAsync()}. In an instance this behaves as {@link Daemon#forkish()}.
+     *
+     * @return the outcome for each instance, or in an instance just its own status
+     */
+    public List<Future<Status>> start() throws IOException, InterruptedException
+    {
+        if (Daemon.isDaemon()) {
+            return Collections.singletonList(Daemon.completed(daemon.withInstance(getInstance()).forkish()));
+        }
+        if ((cpuSets.length > 0 || memoryNodes.length > 0) && !Affinity.isSupported()) {
+            throw new IllegalStateException("CPU sets and memory nodes are only supported on Linux");
+        }
+
+        // each instance is spawned from its own thread, so that pinning it leaves us alone,
+        // and so that they start up in parallel
+        ExecutorService executor = Executors.newFixedThreadPool(instances, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                return new Thread(r, "gressil-group-spawn");
+            }
+        });
+        try {
+            List<Callable<Status>> spawns = new ArrayList<Callable<Status>>();
+            for (int i = 0; i < instances; i++) {
+                spawns.add(spawner(i));
+            }
+            return executor.invokeAll(spawns);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * As {@link Daemon#daemonize()}, the parent exits with 0 if every instance started, and 1
+     * otherwise.
+     */
+    public void daemonize() throws IOException
+    {
+        List<Future<Status>> spawns;
+        try {
+            spawns = start();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while spawning instances", e);
+        }
+        if (Daemon.isDaemon()) {
+            return;
+        }
+        int code = 0;
+        for (int i = 0; i < spawns.size(); i++) {
+            Status status;
+            try {
+                status = spawns.get(i).get();
+            }
+            catch (ExecutionException e) {
+                System.err.printf("instance %d could not be spawned: %s\n", i, e.getCause());
+                code = 1;
+                continue;
+            }
+            catch (InterruptedException e) {
+                // every spawn is already done
+                throw new IllegalStateException(e);
+            }
+            switch (status.getReadiness()) {
+                case FAILED:
+                    System.err.printf("instance %d failed to start, exit code %d\n", i, status.getExitCode());
+                    code = 1;
+                    break;
+                case TIMED_OUT:
+                    System.err.printf("instance %d (pid %d) did not become ready in time\n", i, status.getChildPid());
+                    code = 1;
+                    break;
+                default:
+            }
+        }
+        System.exit(code);
+    }
+
+    /**
+     * The status of each instance, per {@link Daemon#checkStatus()}
+     */
+    public List<DaemonStatus> checkStatus()
+    {
+        List<DaemonStatus> statuses = new ArrayList<DaemonStatus>();
+        for (int i = 0; i < instances; i++) {
+            statuses.add(daemon.withInstance(i).checkStatus());
+        }
+        return statuses;
+    }
+
+    /**
+     * Stop each instance, per {@link Daemon#stop()}
+     */
+    public List<DaemonStatus> stop()
+    {
+        List<DaemonStatus> statuses = new ArrayList<DaemonStatus>();
+        for (int i = 0; i < instances; i++) {
+            statuses.add(daemon.withInstance(i).stop());
+        }
+        return statuses;
+    }
+
+    /**
+     * In an instance spawned by a group, its number, counting from 0. Otherwise -1.
+     */
+    public static int getInstance()
+    {
+        String instance = System.getenv(ENV_NAME);
+        return instance == null ? -1 : Integer.parseInt(instance);
+    }
+
+    private Callable<Status> spawner(final int index)
+    {
+        return new Callable<Status>()
+        {
+            @Override
+            public Status call() throws Exception
+            {
+                if (cpuSets.length > 0) {
+                    Affinity.setCpus(posix, cpuSets[index % cpuSets.length]);
+                }
+                if (memoryNodes.length > 0) {
+                    Affinity.setMemoryNodes(posix, memoryNodes[index % memoryNodes.length]);
+                }
+                return Daemon.reapOnExit(daemon.withInstance(index).spawnUnlessRunning());
+            }
+        };
+    }
+
+    /**
+     * <code>file</code> with <code>-index</code> inserted before its extension
+     */
+    static File indexed(File file, int index)
+    {
+        if (file == null || file.getPath().startsWith("/dev/")) {
+            return file;
+        }
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String indexed = dot > 0
+                         ? name.substring(0, dot) + "-" + index + name.substring(dot)
+                         : name + "-" + index;
+        return new File(file.getParentFile(), indexed);
+    }
+}
@@ -0,0 +1,448 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and gauges a daemon publishes to a memory-mapped file beside its pidfile, named as the
+ * pidfile with <code>.metrics</code> added, in the spirit of hsperfdata. See
+ * {@link Daemon#withMetrics()}. Monitoring reads the file with {@link #read(File)}, which costs
+ * the daemon nothing, as nothing is asked of it.
+ * <p/>
+ * Updating a counter or gauge is a single atomic operation on the daemon's heap. A thread copies
+ * the values, a few JVM gauges, and a heartbeat timestamp into the file once per interval, so
+ * what is read may be up to an interval old. Each value is read whole, but values published on
+ * the same tick need not all be seen together. The heartbeat is held back while any
+ * {@link Watchdog} check fails.
+ * <pre>
+ * private static final DaemonMetrics.Counter requests = DaemonMetrics.counter("requests");
+ * ...
+ * requests.increment();
+ * </pre>
+ */
+public final class DaemonMetrics
+{
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    /**
+     * The most counters and gauges a file has room for, later ones are not published
+     */
+    public static final int CAPACITY = 256;
+
+    /**
+     * The longest name, in bytes of UTF-8
+     */
+    public static final int MAX_NAME_BYTES = 46;
+
+    private static final int MAGIC   = 0x47524d31;
+    private static final int VERSION = 1;
+
+    // header: magic, version, pid, count of slots in use, start time, heartbeat, interval,
+    // watchdog timeout
+    private static final int MAGIC_OFFSET     = 0;
+    private static final int VERSION_OFFSET   = 4;
+    private static final int PID_OFFSET       = 8;
+    private static final int COUNT_OFFSET     = 12;
+    private static final int START_OFFSET     = 16;
+    private static final int HEARTBEAT_OFFSET = 24;
+    private static final int INTERVAL_OFFSET  = 32;
+    private static final int WATCHDOG_OFFSET  = 40;
+    private static final int HEADER_SIZE      = 64;
+
+    // slot: type, name length, name, value at the end so it is 8 byte aligned
+    private static final int SLOT_SIZE         = 64;
+    private static final int SLOT_NAME_OFFSET  = 2;
+    private static final int SLOT_VALUE_OFFSET = 56;
+
+    private static final int SIZE = HEADER_SIZE + CAPACITY * SLOT_SIZE;
+
+    private static final byte COUNTER = 1;
+    private static final byte GAUGE   = 2;
+
+    private static final ConcurrentMap<String, Metric> byName  = new ConcurrentHashMap<String, Metric>();
+    private static final List<Metric>                  metrics = new CopyOnWriteArrayList<Metric>();
+
+    private final MappedByteBuffer buffer;
+    private final long             intervalMillis;
+    private       int              published = 0;
+
+    private final Gauge heapUsed    = gauge("jvm.heap.used");
+    private final Gauge nonHeapUsed = gauge("jvm.non_heap.used");
+    private final Gauge gcCount     = gauge("jvm.gc.count");
+    private final Gauge gcTime      = gauge("jvm.gc.time_ms");
+    private final Gauge threads     = gauge("jvm.threads.live");
+    private final Gauge failing     = gauge("watchdog.failing");
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "gressil-metrics");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private DaemonMetrics(MappedByteBuffer buffer, long intervalMillis)
+    {
+        this.buffer = buffer;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * A counter, only ever going up. The same name gives the same counter.
+     *
+     * @throws IllegalArgumentException if the name is too long, or already names a gauge
+     */
+    public static Counter counter(String name)
+    {
+        return (Counter) register(name, COUNTER);
+    }
+
+    /**
+     * A gauge, set to whatever it should read. The same name gives the same gauge.
+     *
+     * @throws IllegalArgumentException if the name is too long, or already names a counter
+     */
+    public static Gauge gauge(String name)
+    {
+        return (Gauge) register(name, GAUGE);
+    }
+
+    private static Metric register(String name, byte type)
+    {
+        Metric metric = byName.get(name);
+        if (metric == null) {
+            if (name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+                throw new IllegalArgumentException(name + " is longer than " + MAX_NAME_BYTES + " bytes");
+            }
+            Metric created = type == COUNTER ? new Counter(name) : new Gauge(name);
+            metric = byName.putIfAbsent(name, created);
+            if (metric == null) {
+                metrics.add(created);
+                metric = created;
+            }
+        }
+        if (metric.type != type) {
+            throw new IllegalArgumentException(name + " is already a " + (metric.type == COUNTER ? "counter" : "gauge"));
+        }
+        return metric;
+    }
+
+    /**
+     * The metrics file of the daemon with <code>pidfile</code>
+     */
+    static File fileFor(File pidfile)
+    {
+        return new File(pidfile.getPath() + ".metrics");
+    }
+
+    static DaemonMetrics open(File file, long intervalMillis) throws IOException
+    {
+        return open(file, intervalMillis, 0);
+    }
+
+    /**
+     * Create <code>file</code>, replacing any left behind, and publish to it now and every
+     * <code>intervalMillis</code> after. The file is set up under another name and renamed into
+     * place, so readers never see it half written. The watchdog timeout, if any, is recorded
+     * so that anyone reading the file can tell whether the heartbeat has stalled.
+     */
+    static DaemonMetrics open(File file, long intervalMillis, long watchdogTimeoutMillis) throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        MappedByteBuffer buffer;
+        try {
+            raf.setLength(0);
+            raf.setLength(SIZE);
+            // the mapping outlives the channel
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        }
+        finally {
+            raf.close();
+        }
+
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(PID_OFFSET, posix.getpid());
+        buffer.putLong(START_OFFSET, ManagementFactory.getRuntimeMXBean().getStartTime());
+        buffer.putLong(INTERVAL_OFFSET, intervalMillis);
+        buffer.putLong(WATCHDOG_OFFSET, watchdogTimeoutMillis);
+
+        DaemonMetrics daemon_metrics = new DaemonMetrics(buffer, intervalMillis);
+        daemon_metrics.publish();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return daemon_metrics;
+    }
+
+    void start()
+    {
+        executor.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    publish();
+                }
+                catch (RuntimeException e) {
+                    // keep publishing, a stopped heartbeat would look like a hung daemon
+                    System.err.println("unable to publish metrics: " + e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void publish()
+    {
+        updateJvmGauges();
+        List<String> failed = Watchdog.runChecks();
+        failing.set(failed.size());
+
+        // names first, the count tells readers which slots are ready
+        int count = Math.min(metrics.size(), CAPACITY);
+        for (int i = published; i < count; i++) {
+            Metric metric = metrics.get(i);
+            byte[] name = metric.name.getBytes(StandardCharsets.UTF_8);
+            int slot = HEADER_SIZE + i * SLOT_SIZE;
+            buffer.put(slot, metric.type);
+            buffer.put(slot + 1, (byte) name.length);
+            for (int j = 0; j < name.length; j++) {
+                buffer.put(slot + SLOT_NAME_OFFSET + j, name[j]);
+            }
+        }
+        if (count > published) {
+            buffer.putInt(COUNT_OFFSET, count);
+            if (count == CAPACITY && metrics.size() > CAPACITY && published < CAPACITY) {
+                System.err.printf("more than %d metrics, the rest are not published\n", CAPACITY);
+            }
+            published = count;
+        }
+
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(HEADER_SIZE + i * SLOT_SIZE + SLOT_VALUE_OFFSET, metrics.get(i).value.get());
+        }
+        if (failed.isEmpty()) {
+            buffer.putLong(HEARTBEAT_OFFSET, System.currentTimeMillis());
+        }
+    }
+
+    private void updateJvmGauges()
+    {
+        heapUsed.set(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        nonHeapUsed.set(ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage().getUsed());
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        gcCount.set(count);
+        gcTime.set(time);
+        threads.set(ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    /**
+     * Read a daemon's metrics file, such as {@link Daemon#readMetrics()} finds beside its pidfile.
+     * A file left by a daemon which has since died still reads, with its last values and an old
+     * heartbeat.
+     *
+     * @throws IOException if the file cannot be read or is not a metrics file
+     */
+    public static Snapshot read(File file) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            int n = 0;
+            while (buffer.hasRemaining() && n >= 0) {
+                n = channel.read(buffer);
+            }
+        }
+        finally {
+            channel.close();
+        }
+
+        if (buffer.position() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+            throw new IOException(file + " is not a metrics file");
+        }
+        if (buffer.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IOException(file + " is version " + buffer.getInt(VERSION_OFFSET) + ", we read " + VERSION);
+        }
+
+        int count = Math.min(buffer.getInt(COUNT_OFFSET), (buffer.position() - HEADER_SIZE) / SLOT_SIZE);
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < count; i++) {
+            int slot = HEADER_SIZE + i * SLOT_SIZE;
+            int length = Math.min(buffer.get(slot + 1) & 0xff, MAX_NAME_BYTES);
+            String name = new String(buffer.array(), slot + SLOT_NAME_OFFSET, length, StandardCharsets.UTF_8);
+            values.put(name, buffer.getLong(slot + SLOT_VALUE_OFFSET));
+        }
+        return new Snapshot(buffer.getInt(PID_OFFSET), buffer.getLong(START_OFFSET), buffer.getLong(HEARTBEAT_OFFSET),
+                            buffer.getLong(INTERVAL_OFFSET), buffer.getLong(WATCHDOG_OFFSET), values);
+    }
+
+    private static class Metric
+    {
+        final String     name;
+        final byte       type;
+        final AtomicLong value = new AtomicLong();
+
+        Metric(String name, byte type)
+        {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    public static final class Counter extends Metric
+    {
+        private Counter(String name)
+        {
+            super(name, COUNTER);
+        }
+
+        public void increment()
+        {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta)
+        {
+            value.addAndGet(delta);
+        }
+
+        public long get()
+        {
+            return value.get();
+        }
+    }
+
+    public static final class Gauge extends Metric
+    {
+        private Gauge(String name)
+        {
+            super(name, GAUGE);
+        }
+
+        public void set(long value)
+        {
+            this.value.set(value);
+        }
+
+        public long get()
+        {
+            return value.get();
+        }
+    }
+
+    /**
+     * What a metrics file held when it was read
+     */
+    public static final class Snapshot
+    {
+        private final int               pid;
+        private final long              startTime;
+        private final long              heartbeat;
+        private final long              intervalMillis;
+        private final long              watchdogTimeoutMillis;
+        private final Map<String, Long> values;
+
+        Snapshot(int pid, long startTime, long heartbeat, long intervalMillis, long watchdogTimeoutMillis,
+                 Map<String, Long> values)
+        {
+            this.pid = pid;
+            this.startTime = startTime;
+            this.heartbeat = heartbeat;
+            this.intervalMillis = intervalMillis;
+            this.watchdogTimeoutMillis = watchdogTimeoutMillis;
+            this.values = Collections.unmodifiableMap(values);
+        }
+
+        public int getPid()
+        {
+            return pid;
+        }
+
+        /**
+         * When the daemon's JVM started, in milliseconds since the epoch
+         */
+        public long getStartTime()
+        {
+            return startTime;
+        }
+
+        /**
+         * When the daemon last published, in milliseconds since the epoch
+         */
+        public long getHeartbeat()
+        {
+            return heartbeat;
+        }
+
+        /**
+         * How often the daemon publishes, in milliseconds
+         */
+        public long getInterval()
+        {
+            return intervalMillis;
+        }
+
+        /**
+         * How old the heartbeat may get before the daemon counts as stalled, in milliseconds, or
+         * 0 if it has no watchdog
+         */
+        public long getWatchdogTimeout()
+        {
+            return watchdogTimeoutMillis;
+        }
+
+        /**
+         * Counters and gauges by name, in the order they were registered
+         */
+        public Map<String, Long> getValues()
+        {
+            return values;
+        }
+
+        /**
+         * One <code>name value</code> line each for the pid, heartbeat, counters and gauges
+         */
+        @Override
+        public String toString()
+        {
+            StringBuilder out = new StringBuilder();
+            out.append("pid ").append(pid).append('\n');
+            out.append("heartbeat_age_ms ").append(System.currentTimeMillis() - heartbeat).append('\n');
+            for (Map.Entry<String, Long> value : values.entrySet()) {
+                out.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+            }
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Keeps a number of spare daemons spawned and booted, but idle, so that handing out a new one
+ * costs a write to a pipe rather than a JVM startup.
+ * <p/>
+ * The spares are spawned exactly as {@link Daemon#daemonize()} would spawn them, but in the
+ * child the call to <code>daemonize()</code> does not return until the spare is handed out
+ * by {@link #spawn(String...)}. The child can then find the arguments it was handed out with
+ * via {@link #getAssignedArgs()}:
+ * <pre>
+ * Daemon daemon = new Daemon().withMainArgs(args).withStdout(new File("/tmp/worker.out"));
+ * if (Daemon.isDaemon()) {
+ *     daemon.daemonize();
+ *     serve(DaemonPool.getAssignedArgs());
+ * }
+ * else {
+ *     DaemonPool pool = new DaemonPool(daemon, 4);
+ *     pool.start();
+ *     pool.spawn("tenant-a");
+ * }
+ * </pre>
+ * Spares which are never handed out exit when the pool is closed, or when the process holding
+ * the pool exits. Handed out daemons remain children of the process holding the pool, which
+ * reaps them when they exit, see {@link ProcessWatcher}.
+ * <p/>
+ * Readiness is not waited for when spawning spares, as a spare cannot be ready until it has
+ * been handed out. The daemon cannot have a pidfile, as all the spares would share it and only
+ * the first handed out could lock it, so nor can it have a control socket, metrics or a
+ * watchdog. Handed out daemons are told apart by the args they are handed out with.
+ */
+public class DaemonPool
+{
+    static final String ENV_NAME = DaemonPool.class.getName() + ".control_fd";
+
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    private static volatile List<String> assignedArgs = Collections.emptyList();
+
+    private final Daemon daemon;
+    private final int    size;
+
+    private final Deque<Spare> spares = new ArrayDeque<Spare>();
+
+    private boolean closed = false;
+
+    /**
+     * @throws IllegalArgumentException if <code>daemon</code> has a pidfile
+     */
+    public DaemonPool(Daemon daemon, int size)
+    {
+        if (daemon.getPidFile() != null) {
+            throw new IllegalArgumentException("spares cannot share the pidfile " + daemon.getPidFile());
+        }
+        this.daemon = daemon.withReadinessTimeout(0, TimeUnit.MILLISECONDS);
+        this.size = size;
+    }
+
+    /**
+     * Spawn spares until there are as many as the pool size
+     */
+    public synchronized void start() throws IOException
+    {
+        if (closed) {
+            throw new IllegalStateException("pool has been closed");
+        }
+        while (spares.size() < size) {
+            spares.add(spawnSpare());
+        }
+    }
+
+    /**
+     * Hand out a spare daemon, which will see <code>args</code> from {@link #getAssignedArgs()},
+     * and spawn a replacement for it. If there are no live spares one is spawned and handed out
+     * directly, which is no faster than not using a pool.
+     *
+     * @return the parent side status for the handed out daemon
+     * @throws IOException if the directly spawned daemon died before it could be handed out too
+     */
+    public synchronized Status spawn(String... args) throws IOException
+    {
+        if (closed) {
+            throw new IllegalStateException("pool has been closed");
+        }
+        byte[] message = encode(asList(args));
+
+        Spare assigned = null;
+        while (assigned == null && !spares.isEmpty()) {
+            Spare spare = spares.removeFirst();
+            if (spare.assign(message)) {
+                assigned = spare;
+            }
+        }
+        if (assigned == null) {
+            // every spare died waiting, a fresh one may well go the same way so only try once
+            Spare spare = spawnSpare();
+            if (!spare.assign(message)) {
+                throw new IOException("spare daemon " + spare.process.getPid() + " exited before it could be handed out");
+            }
+            assigned = spare;
+        }
+
+        start();
+        return Status.parent(assigned.process.getPid());
+    }
+
+    /**
+     * The number of spares currently waiting to be handed out
+     */
+    public synchronized int getSpareCount()
+    {
+        return spares.size();
+    }
+
+    /**
+     * Tell all the spares which have not been handed out to exit
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        while (!spares.isEmpty()) {
+            spares.removeFirst().discard();
+        }
+    }
+
+    /**
+     * In a daemon which was handed out from a pool, the args given to {@link #spawn(String...)}.
+     * An empty list otherwise.
+     */
+    public static List<String> getAssignedArgs()
+    {
+        return assignedArgs;
+    }
+
+    private Spare spawnSpare() throws IOException
+    {
+        int[] fds = Fcntl.pipe(posix);
+        try {
+            Status status = daemon.spawn(Collections.singletonMap(ENV_NAME, fds[0]));
+            // reaped whenever it exits, whether it was discarded, handed out, or died waiting
+            SpawnedProcess process = new SpawnedProcess(posix, status.getChildPid(), null, null, null);
+            process.watch(ProcessWatcher.shared());
+            return new Spare(process, fds[1]);
+        }
+        catch (RuntimeException e) {
+            posix.close(fds[1]);
+            throw e;
+        }
+        finally {
+            posix.close(fds[0]);
+        }
+    }
+
+    private static byte[] encode(List<String> args) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeInt(args.size());
+        for (String arg : args) {
+            byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        out.flush();
+
+        ByteBuffer message = ByteBuffer.allocate(4 + body.size());
+        message.putInt(body.size());
+        message.put(body.toByteArray());
+        return message.array();
+    }
+
+    /**
+     * Called in the child, blocks until the spare is handed out if this is a spare. Exits
+     * the process if the pool goes away without handing it out.
+     */
+    static void awaitAssignment(MicroC posix)
+    {
+        String fd = System.getenv(ENV_NAME);
+        if (fd == null) {
+            return;
+        }
+        int control_fd = Integer.parseInt(fd);
+
+        byte[] header = readFully(posix, control_fd, 4);
+        byte[] body = header == null ? null : readFully(posix, control_fd, ByteBuffer.wrap(header).getInt());
+        posix.close(control_fd);
+        if (body == null) {
+            // the pool was closed, or whoever held it went away
+            System.exit(0);
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(body);
+        int count = in.getInt();
+        List<String> args = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            args.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        assignedArgs = Collections.unmodifiableList(args);
+    }
+
+    private static byte[] readFully(MicroC posix, int fd, int length)
+    {
+        byte[] buf = new byte[length];
+        byte[] chunk = new byte[Math.min(length, 8192)];
+        int offset = 0;
+        while (offset < length) {
+            int n = posix.read(fd, chunk, Math.min(chunk.length, length - offset));
+            if (n <= 0) {
+                if (n < 0 && Fcntl.errno() == Fcntl.EINTR) {
+                    continue;
+                }
+                return null;
+            }
+            System.arraycopy(chunk, 0, buf, offset, n);
+            offset += n;
+        }
+        return buf;
+    }
+
+    private static class Spare
+    {
+        private final SpawnedProcess process;
+        private final int            controlFd;
+
+        Spare(SpawnedProcess process, int controlFd)
+        {
+            this.process = process;
+            this.controlFd = controlFd;
+        }
+
+        /**
+         * Returns false if the spare has died in the meantime and could not be handed out
+         */
+        boolean assign(byte[] message)
+        {
+            try {
+                if (!process.isAlive()) {
+                    return false;
+                }
+
+                // unless the message is bigger than the pipe buffer this does not wait on the spare
+                int offset = 0;
+                while (offset < message.length) {
+                    byte[] rest = offset == 0 ? message : Arrays.copyOfRange(message, offset, message.length);
+                    int n = posix.write(controlFd, rest, rest.length);
+                    if (n < 0) {
+                        if (Fcntl.errno() == Fcntl.EINTR) {
+                            continue;
+                        }
+                        return false;
+                    }
+                    offset += n;
+                }
+                return true;
+            }
+            finally {
+                posix.close(controlFd);
+            }
+        }
+
+        void discard()
+        {
+            posix.close(controlFd);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.skife.gressil;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks the status of many daemons at once, for monitoring, without forking a process per
+ * daemon or exiting the JVM. Each pidfile is checked as {@link Daemon#checkStatus()} would, but
+ * the pid in it is only parsed again once the file has been replaced. A running daemon with a
+ * watchdog shows as {@link DaemonStatus#STATUS_STALLED} once its heartbeat is older than the
+ * timeout it recorded in its metrics file.
+ * <p/>
+ * A registry is safe to use from several threads, and is meant to be kept and reused.
+ */
+public class DaemonRegistry
+{
+    private final Map<File, CachedPid> pids = new ConcurrentHashMap<File, CachedPid>();
+
+    /**
+     * The status of the daemon behind each of <code>pidfiles</code>, in the order given
+     */
+    public Map<File, DaemonStatus> checkAll(Collection<File> pidfiles)
+    {
+        Map<File, DaemonStatus> statuses = new LinkedHashMap<File, DaemonStatus>();
+        for (File pidfile : pidfiles) {
+            statuses.put(pidfile, check(pidfile));
+        }
+        return statuses;
+    }
+
+    /**
+     * The status of the daemon behind each <code>*.pid</code> file in <code>directory</code>,
+     * ordered by name
+     */
+    public Map<File, DaemonStatus> checkAll(File directory)
+    {
+        File[] pidfiles = directory.listFiles(new FileFilter()
+        {
+            @Override
+            public boolean accept(File file)
+            {
+                return file.getName().endsWith(".pid") && file.isFile();
+            }
+        });
+        if (pidfiles == null) {
+            return new LinkedHashMap<File, DaemonStatus>();
+        }
+        Arrays.sort(pidfiles);
+        return checkAll(Arrays.asList(pidfiles));
+    }
+
+    DaemonStatus check(File pidfile)
+    {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(pidfile.toPath(), BasicFileAttributes.class);
+        }
+        catch (IOException e) {
+            pids.remove(pidfile);
+            return DaemonStatus.STATUS_NOT_RUNNING;
+        }
+
+        PidFile pid_file = new PidFile(pidfile);
+        CachedPid cached = pids.get(pidfile);
+        if (cached == null || !cached.isCurrent(attributes)) {
+            try {
+                cached = new CachedPid(attributes, pid_file.readPid());
+            }
+            catch (IOException e) {
+                return DaemonStatus.STATUS_UNKNOWN;
+            }
+            catch (NumberFormatException e) {
+                return DaemonStatus.STATUS_UNKNOWN;
+            }
+            pids.put(pidfile, cached);
+        }
+
+        if (!Daemon.isRunning(pid_file, cached.pid)) {
+            return DaemonStatus.STATUS_DEAD;
+        }
+        return isStalled(pidfile, cached.pid) ? DaemonStatus.STATUS_STALLED : DaemonStatus.STATUS_RUNNING;
+    }
+
+    private static boolean isStalled(File pidfile, int pid)
+    {
+        File metrics = DaemonMetrics.fileFor(pidfile);
+        if (!metrics.exists()) {
+            return false;
+        }
+        try {
+            return Watchdog.isStalled(DaemonMetrics.read(metrics), pid, System.currentTimeMillis());
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static class CachedPid
+    {
+        // pidfiles are replaced by rename, so a new file also means a new inode
+        private final long   modified;
+        private final Object fileKey;
+        private final int    pid;
+
+        CachedPid(BasicFileAttributes attributes, int pid)
+        {
+            this.modified = attributes.lastModifiedTime().toMillis();
+            this.fileKey = attributes.fileKey();
+            this.pid = pid;
+        }
+
+        boolean isCurrent(BasicFileAttributes attributes)
+        {
+            return modified == attributes.lastModifiedTime().toMillis()
+                   && (fileKey == null ? attributes.fileKey() == null : fileKey.equals(attributes.fileKey()));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.skife.gressil;
+
+import jnr.ffi.Platform;
+
+/**
+ * The signals a daemon can handle with {@link Daemon#onSignal(DaemonSignal, Runnable)}, and be
+ * sent with {@link Daemon#signal(DaemonSignal)}.
+ */
+public enum DaemonSignal
+{
+    /**
+     * Conventionally reload configuration. Daemons with log rotation also reopen their output
+     * files on HUP.
+     */
+    HUP(1, 1),
+
+    USR1(10, 30),
+
+    USR2(12, 31),
+
+    /**
+     * Handlers for TERM run before the JVM's usual shutdown, rather than instead of it
+     */
+    TERM(15, 15),
+
+    /**
+     * Makes the JVM print a thread dump to stdout. The JVM keeps it for itself, so it can be
+     * sent but not handled.
+     */
+    QUIT(3, 3);
+
+    private static final boolean DARWIN = Platform.getNativePlatform().getOS() == Platform.OS.DARWIN;
+
+    private final int linux;
+    private final int darwin;
+
+    DaemonSignal(int linux, int darwin)
+    {
+        this.linux = linux;
+        this.darwin = darwin;
+    }
+
+    int getNumber()
+    {
+        return DARWIN ? darwin : linux;
+    }
+}
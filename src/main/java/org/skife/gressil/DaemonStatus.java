@@ -5,8 +5,17 @@ public enum DaemonStatus
     // for status
     STATUS_RUNNING(0), STATUS_DEAD(1), STATUS_NOT_RUNNING(3), STATUS_UNKNOWN(4),
 
+    // for status with a watchdog, running but its heartbeat has stopped
+    STATUS_STALLED(150),
+
     // for stop
-    STOP_NOT_RUNNING(7), STOP_GENERAL_ERROR(1), STOP_SUCCESS(0);
+    STOP_NOT_RUNNING(7), STOP_GENERAL_ERROR(1), STOP_SUCCESS(0),
+
+    // for stop with a drain timeout, killed is still a successful stop
+    STOP_KILLED(0), STOP_TIMED_OUT(1),
+
+    // for reload and other signals
+    SIGNAL_SUCCESS(0), SIGNAL_NOT_RUNNING(7), SIGNAL_GENERAL_ERROR(1);
 
     private final int exitCode;
 
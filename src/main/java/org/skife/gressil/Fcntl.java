@@ -0,0 +1,173 @@
+package org.skife.gressil;
+
+import jnr.ffi.LastError;
+import jnr.ffi.Memory;
+import jnr.ffi.Platform;
+import jnr.ffi.Pointer;
+
+import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Small helpers around raw file descriptors. The constants here have the same values on
+ * Linux and Mac OS X, except where they are looked up for the platform.
+ */
+final class Fcntl
+{
+    private static final boolean DARWIN = Platform.getNativePlatform().getOS() == Platform.OS.DARWIN;
+
+    static final int O_RDONLY = 0;
+    static final int O_WRONLY = 1;
+    static final int O_CREAT  = DARWIN ? 0x200 : 0100;
+    static final int O_APPEND = DARWIN ? 0x8 : 02000;
+
+    static final int O_CLOEXEC = DARWIN ? 0x1000000 : 02000000;
+
+    static final int F_GETFD    = 1;
+    static final int F_SETFD    = 2;
+    static final int FD_CLOEXEC = 1;
+
+    static final int F_DUPFD_CLOEXEC = DARWIN ? 67 : 1030;
+
+    static final int F_GETFL    = 3;
+    static final int F_SETFL    = 4;
+    static final int O_NONBLOCK = DARWIN ? 0x4 : 04000;
+
+    static final int F_GETLK  = DARWIN ? 7 : 5;
+    static final int F_SETLKW = DARWIN ? 9 : 7;
+    static final int F_WRLCK  = DARWIN ? 3 : 1;
+    static final int F_UNLCK  = 2;
+    static final int SEEK_SET = 0;
+
+    // struct flock, as off_t start, len; pid_t pid; short type, whence on Mac OS X, and as
+    // short type, whence; off_t start, len; pid_t pid on Linux
+    private static final int SIZEOF_FLOCK = DARWIN ? 24 : 32;
+    private static final int FLOCK_TYPE   = DARWIN ? 20 : 0;
+    private static final int FLOCK_WHENCE = DARWIN ? 22 : 2;
+
+    static final int EINTR  = 4;
+    static final int EAGAIN = DARWIN ? 35 : 11;
+    static final int ENOSYS = 38;
+
+    static final short POLLIN = 0x1;
+
+    // struct pollfd { int fd; short events; short revents; }
+    static final int SIZEOF_POLLFD = 8;
+
+    /**
+     * Held shared around every spawn, and exclusively while a descriptor is between being
+     * created and being marked close-on-exec, so that no spawn in between can leak it
+     */
+    private static final ReadWriteLock cloexec = new ReentrantReadWriteLock();
+
+    private static volatile boolean hasPipe2 = !DARWIN;
+
+    private Fcntl()
+    {
+    }
+
+    /**
+     * Creates a pipe with both ends marked close-on-exec, so they are not leaked into
+     * unrelated children. Returns { read end, write end }.
+     * <p/>
+     * On Linux this is atomic, using pipe2. Elsewhere the pipe is created and marked while
+     * holding off spawns, see {@link #spawnLock()}.
+     */
+    static int[] pipe(MicroC posix) throws IOException
+    {
+        int[] fds = new int[2];
+        if (hasPipe2) {
+            try {
+                if (posix.pipe2(fds, O_CLOEXEC) == 0) {
+                    return fds;
+                }
+                if (errno() != ENOSYS) {
+                    throw new IOException(posix.strerror(errno()));
+                }
+            }
+            catch (UnsatisfiedLinkError e) {
+                // libc without pipe2
+            }
+            hasPipe2 = false;
+        }
+
+        Lock lock = markingLock();
+        lock.lock();
+        try {
+            if (posix.pipe(fds) != 0) {
+                throw new IOException(posix.strerror(errno()));
+            }
+            posix.fcntl(fds[0], F_SETFD, FD_CLOEXEC);
+            posix.fcntl(fds[1], F_SETFD, FD_CLOEXEC);
+            return fds;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * To be held while spawning a child, so that it cannot inherit a pipe from
+     * {@link #pipe(MicroC)} before the pipe is marked close-on-exec. Spawns on different
+     * threads do not hold each other up.
+     */
+    static Lock spawnLock()
+    {
+        return cloexec.readLock();
+    }
+
+    /**
+     * To be held while creating a descriptor which cannot be created close-on-exec in one call,
+     * until it has been marked, as {@link #pipe(MicroC)} does. It holds off every spawn, so
+     * must not be held across anything which can block.
+     */
+    static Lock markingLock()
+    {
+        return cloexec.writeLock();
+    }
+
+    /**
+     * Whether another process holds a lock on any of the file open at <code>fd</code> which
+     * would stop us write locking it, found without taking any lock ourselves. Locks held by
+     * this process do not count.
+     */
+    static boolean isLockedByOther(MicroC posix, int fd) throws IOException
+    {
+        Pointer flock = wholeFileLock();
+        if (posix.fcntl(fd, F_GETLK, flock) != 0) {
+            throw new IOException(posix.strerror(errno()));
+        }
+        return flock.getShort(FLOCK_TYPE) != F_UNLCK;
+    }
+
+    /**
+     * Write lock all of the file open at <code>fd</code>, which must be open for writing,
+     * waiting for any other process to let go of it first. The lock lasts until the file is
+     * closed.
+     */
+    static void lockExclusively(MicroC posix, int fd) throws IOException
+    {
+        Pointer flock = wholeFileLock();
+        while (posix.fcntl(fd, F_SETLKW, flock) != 0) {
+            if (errno() != EINTR) {
+                throw new IOException(posix.strerror(errno()));
+            }
+        }
+    }
+
+    private static Pointer wholeFileLock()
+    {
+        // start and len of zero cover the whole file
+        Pointer flock = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), SIZEOF_FLOCK, true);
+        flock.putShort(FLOCK_TYPE, (short) F_WRLCK);
+        flock.putShort(FLOCK_WHENCE, (short) SEEK_SET);
+        return flock;
+    }
+
+    static int errno()
+    {
+        return LastError.getLastError(jnr.ffi.Runtime.getSystemRuntime());
+    }
+}
@@ -0,0 +1,266 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+import jnr.ffi.Memory;
+import jnr.ffi.Platform;
+import jnr.ffi.Pointer;
+import jnr.ffi.byref.IntByReference;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Passes bound listening sockets from a daemon to the daemon replacing it, so that the port
+ * never closes during a restart. The sockets are passed the way systemd passes them, as
+ * descriptors 3 and up with <code>LISTEN_FDS</code> set to how many there are, so a daemon
+ * started by systemd socket activation can adopt its sockets the same way.
+ * <p/>
+ * In the running daemon:
+ * <pre>
+ * Status status = new Daemon().withMainArgs(args)
+ *                             .withInheritedSockets(server)
+ *                             .withReadinessTimeout(30, TimeUnit.SECONDS)
+ *                             .handoff();
+ * if (status.isReady()) {
+ *     // stop accepting, finish in flight requests, and exit
+ * }
+ * </pre>
+ * and in its replacement, {@link #adopt()} returns <code>server</code>, still bound and
+ * listening, before it calls {@link Daemon#notifyReady()}.
+ */
+public final class InheritedSockets
+{
+    static final String LISTEN_FDS = "LISTEN_FDS";
+    static final String LISTEN_PID = "LISTEN_PID";
+
+    /**
+     * Inherited sockets start just past stdin, stdout, and stderr
+     */
+    static final int FIRST_FD = 3;
+
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    private static final boolean DARWIN = Platform.getNativePlatform().getOS() == Platform.OS.DARWIN;
+
+    private static final int AF_INET  = 2;
+    private static final int AF_INET6 = DARWIN ? 30 : 10;
+
+    private static final int SOL_SOCKET    = DARWIN ? 0xffff : 1;
+    private static final int SO_TYPE       = DARWIN ? 0x1008 : 3;
+    private static final int SO_ACCEPTCONN = DARWIN ? 0x0002 : 30;
+    private static final int SOCK_STREAM   = 1;
+
+    // big enough for a sockaddr_storage
+    private static final int SIZEOF_SOCKADDR = 128;
+
+    private static List<ServerSocketChannel> adopted;
+
+    private InheritedSockets()
+    {
+    }
+
+    /**
+     * The listening sockets passed to this process, in the order they were given to
+     * {@link Daemon#withInheritedSockets(List)}. The sockets are only adopted once, later calls
+     * return the same channels. Returns an empty list if no sockets were passed to us.
+     */
+    public static synchronized List<ServerSocketChannel> adopt() throws IOException
+    {
+        if (adopted != null) {
+            return adopted;
+        }
+
+        String count = System.getenv(LISTEN_FDS);
+        String pid = System.getenv(LISTEN_PID);
+        if (count == null || (pid != null && !pid.equals(String.valueOf(posix.getpid())))) {
+            // not ours, we inherited the environment of a process which was passed sockets
+            adopted = Collections.emptyList();
+            return adopted;
+        }
+
+        List<ServerSocketChannel> channels = new ArrayList<ServerSocketChannel>();
+        for (int fd = FIRST_FD; fd < FIRST_FD + Integer.parseInt(count); fd++) {
+            posix.fcntl(fd, Fcntl.F_SETFD, Fcntl.FD_CLOEXEC);
+            channels.add(channelFor(fd));
+        }
+        adopted = Collections.unmodifiableList(channels);
+        return adopted;
+    }
+
+    /**
+     * Find the descriptor backing <code>channel</code>, by looking for the listening socket
+     * which is bound to the same address. Connections accepted on it have the same local
+     * address, so only a listening stream socket will do.
+     */
+    static int fdOf(ServerSocketChannel channel) throws IOException
+    {
+        SocketAddress local = channel.getLocalAddress();
+        if (!(local instanceof InetSocketAddress)) {
+            throw new IllegalArgumentException("socket is not bound: " + channel);
+        }
+        InetSocketAddress wanted = (InetSocketAddress) local;
+
+        String[] open = new File("/dev/fd").list();
+        if (open == null) {
+            throw new IOException("unable to list open descriptors");
+        }
+        for (String name : open) {
+            int fd = Integer.parseInt(name);
+            if (fd > 2 && isListening(fd) && sameAddress(getsockname(fd), wanted)) {
+                return fd;
+            }
+        }
+        throw new IOException("unable to find descriptor for " + wanted);
+    }
+
+    private static boolean sameAddress(InetSocketAddress found, InetSocketAddress wanted)
+    {
+        return found != null
+               && found.getPort() == wanted.getPort()
+               && Arrays.equals(normalize(found.getAddress()), normalize(wanted.getAddress()));
+    }
+
+    private static byte[] normalize(InetAddress address)
+    {
+        byte[] bytes = address.getAddress();
+        if (bytes.length == 16 && isV4Mapped(bytes)) {
+            return Arrays.copyOfRange(bytes, 12, 16);
+        }
+        if (address.isAnyLocalAddress()) {
+            // 0.0.0.0 and :: both mean every address
+            return new byte[0];
+        }
+        return bytes;
+    }
+
+    private static boolean isV4Mapped(byte[] bytes)
+    {
+        for (int i = 0; i < 10; i++) {
+            if (bytes[i] != 0) {
+                return false;
+            }
+        }
+        return bytes[10] == (byte) 0xff && bytes[11] == (byte) 0xff;
+    }
+
+    private static boolean isListening(int fd)
+    {
+        return getsockopt(fd, SO_TYPE) == SOCK_STREAM && getsockopt(fd, SO_ACCEPTCONN) == 1;
+    }
+
+    /**
+     * The int valued SOL_SOCKET option <code>name</code> of <code>fd</code>, or -1 if it is
+     * not a socket
+     */
+    private static int getsockopt(int fd, int name)
+    {
+        Pointer value = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), 4);
+        IntByReference length = new IntByReference(4);
+        if (posix.getsockopt(fd, SOL_SOCKET, name, value, length) != 0) {
+            return -1;
+        }
+        return value.getInt(0);
+    }
+
+    /**
+     * The address <code>fd</code> is bound to, or null if it is not an internet socket
+     */
+    private static InetSocketAddress getsockname(int fd) throws IOException
+    {
+        Pointer addr = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), SIZEOF_SOCKADDR);
+        IntByReference length = new IntByReference(SIZEOF_SOCKADDR);
+        if (posix.getsockname(fd, addr, length) != 0) {
+            return null;
+        }
+
+        int family = DARWIN ? addr.getByte(1) & 0xff : addr.getShort(0) & 0xffff;
+        int port = ((addr.getByte(2) & 0xff) << 8) | (addr.getByte(3) & 0xff);
+        byte[] bytes;
+        if (family == AF_INET) {
+            bytes = new byte[4];
+            addr.get(4, bytes, 0, 4);
+        }
+        else if (family == AF_INET6) {
+            bytes = new byte[16];
+            addr.get(8, bytes, 0, 16);
+        }
+        else {
+            return null;
+        }
+        return new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+    }
+
+    private static ServerSocketChannel channelFor(int fd) throws IOException
+    {
+        InetSocketAddress address = getsockname(fd);
+        if (address == null) {
+            throw new IOException(format(fd, "is not a bound internet socket"));
+        }
+        ProtocolFamily family = address.getAddress() instanceof Inet4Address
+                                ? StandardProtocolFamily.INET
+                                : StandardProtocolFamily.INET6;
+
+        // there is no public way to wrap a descriptor in a channel, on JDK 9 and later the
+        // spawned JVM is given the --add-opens this needs, see Daemon#buildARGV
+        try {
+            FileDescriptor descriptor = new FileDescriptor();
+            Field field = FileDescriptor.class.getDeclaredField("fd");
+            field.setAccessible(true);
+            field.setInt(descriptor, fd);
+
+            Class<?> impl = Class.forName("sun.nio.ch.ServerSocketChannelImpl");
+            SelectorProvider provider = SelectorProvider.provider();
+            for (Constructor<?> ctor : impl.getDeclaredConstructors()) {
+                Class<?>[] params = ctor.getParameterTypes();
+                if (params.length == 3 && params[1] == FileDescriptor.class) {
+                    ctor.setAccessible(true);
+                    return (ServerSocketChannel) ctor.newInstance(provider, descriptor, true);
+                }
+                if (params.length == 4 && params[2] == FileDescriptor.class) {
+                    ctor.setAccessible(true);
+                    return (ServerSocketChannel) ctor.newInstance(provider, family, descriptor, true);
+                }
+            }
+            throw new IOException(format(fd, "cannot be adopted on this JVM"));
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException(format(fd, "cannot be adopted on this JVM"), e);
+        }
+    }
+
+    private static String format(int fd, String problem)
+    {
+        return String.format("inherited descriptor %d %s", fd, problem);
+    }
+
+    /**
+     * The JVM arguments needed for {@link #adopt()} to work in a JVM of the same version as
+     * this one
+     */
+    static List<String> getJvmArgs()
+    {
+        if (JavaVersion.feature() < 9) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList("--add-opens=java.base/java.io=ALL-UNNAMED",
+                             "--add-opens=java.base/sun.nio.ch=ALL-UNNAMED");
+    }
+}
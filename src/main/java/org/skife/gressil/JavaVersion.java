@@ -0,0 +1,25 @@
+package org.skife.gressil;
+
+final class JavaVersion
+{
+    private JavaVersion()
+    {
+    }
+
+    /**
+     * The feature release of the running JVM, ie 7 for 1.7, 17 for 17
+     */
+    static int feature()
+    {
+        String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        try {
+            return Integer.parseInt(version);
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
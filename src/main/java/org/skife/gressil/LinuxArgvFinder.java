@@ -1,51 +1,128 @@
 package org.skife.gressil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
+/**
+ * Our exact argv, as the kernel has it in /proc/self/cmdline, with no guessing at where
+ * arguments containing spaces begin and end. It cannot change, so it is read once per process.
+ * <p/>
+ * Given program args, they replace the main args we were started with, which are everything
+ * after the main class, <code>-jar</code> jar, or <code>-m</code> module.
+ */
 class LinuxArgvFinder implements ArgvFinder
 {
-    private final int pid;
+    private static final File SELF = new File("/proc/self/cmdline");
 
-    LinuxArgvFinder(int pid)
+    // launcher options whose value is the following argument
+    private static final Set<String> OPTIONS_WITH_VALUES = new HashSet<String>(Arrays.asList(
+        "-cp", "-classpath", "--class-path", "-p", "--module-path", "--upgrade-module-path",
+        "--add-modules", "--limit-modules", "--add-reads", "--add-exports", "--add-opens",
+        "--patch-module", "--source"));
+
+    private static volatile List<String> self;
+
+    private final List<String> programArgs;
+
+    LinuxArgvFinder(List<String> programArgs)
     {
-        this.pid = pid;
+        this.programArgs = programArgs;
     }
 
     public List<String> getArgv()
     {
-        final String cmdline;
-        File procfs_file = new File("/proc/" + pid + "/cmdline");
-        try {
-            cmdline = readFile(procfs_file);
+        List<String> argv = self;
+        if (argv == null) {
+            try {
+                argv = Collections.unmodifiableList(read(SELF));
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Unable to access " + SELF.getAbsolutePath());
+            }
+            self = argv;
         }
-        catch (IOException e) {
-            throw new IllegalStateException("Unable to access " + procfs_file.getAbsolutePath());
+
+        if (programArgs == null) {
+            return new ArrayList<String>(argv);
         }
-        return new ArrayList<String>(Arrays.asList(cmdline.split("\0")));
+        List<String> replaced = new ArrayList<String>(argv.subList(0, mainArgsStart(argv)));
+        replaced.addAll(programArgs);
+        return replaced;
     }
 
-    private static String readFile(File f) throws IOException
+    /**
+     * The NUL separated strings in <code>cmdline</code>, decoded as the JVM decodes its own
+     * arguments
+     */
+    static List<String> read(File cmdline) throws IOException
     {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        FileInputStream fin = new FileInputStream(f);
+        FileInputStream in = new FileInputStream(cmdline);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
         try {
-            int sz;
-            byte[] buf = new byte[1024];
-
-            while ((sz = fin.read(buf)) >= 0) {
-                baos.write(buf, 0, sz);
+            // procfs reports a size of zero, so read until EOF
+            FileChannel channel = in.getChannel();
+            while (channel.read(buffer) >= 0) {
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    bigger.put(buffer);
+                    buffer = bigger;
+                }
             }
-
-            return baos.toString();
         }
         finally {
-            fin.close();
+            in.close();
+        }
+
+        Charset charset = NativeStrings.charset();
+        byte[] bytes = buffer.array();
+        int end = buffer.position();
+        List<String> argv = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i < end; i++) {
+            if (bytes[i] == 0) {
+                argv.add(new String(bytes, start, i - start, charset));
+                start = i + 1;
+            }
+        }
+        if (start < end) {
+            // a process may overwrite its args and drop the final NUL
+            argv.add(new String(bytes, start, end - start, charset));
+        }
+        return argv;
+    }
+
+    /**
+     * Where the main args begin, just past the main class, jar or module
+     */
+    static int mainArgsStart(List<String> argv)
+    {
+        for (int i = 1; i < argv.size(); i++) {
+            String arg = argv.get(i);
+            if ("-jar".equals(arg) || "-m".equals(arg) || "--module".equals(arg)) {
+                return Math.min(i + 2, argv.size());
+            }
+            if (arg.startsWith("--module=")) {
+                return i + 1;
+            }
+            if (OPTIONS_WITH_VALUES.contains(arg)) {
+                i++;
+            }
+            else if (!arg.startsWith("-") && !arg.startsWith("@")) {
+                // the main class, @argfiles are options which the launcher expands
+                return i + 1;
+            }
         }
+        return argv.size();
     }
 }
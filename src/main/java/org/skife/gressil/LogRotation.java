@@ -0,0 +1,83 @@
+package org.skife.gressil;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How a daemon should rotate its stdout and stderr files, see
+ * {@link Daemon#withLogRotation(LogRotation)}. A file is rotated once it grows past the size
+ * limit or once the interval has passed, whichever comes first; either may be left unset.
+ * <p/>
+ * Rotating renames <code>daemon.out</code> to <code>daemon.out.1</code>, shifting older segments
+ * up one, and points the daemon's stdout at a fresh <code>daemon.out</code>. Nothing is copied
+ * and nothing written in between is lost.
+ */
+public class LogRotation
+{
+    private final long    maxBytes;
+    private final long    intervalMillis;
+    private final int     retainedSegments;
+    private final boolean compress;
+
+    /**
+     * No size or time limit, keeping 10 uncompressed segments. Without limits files are never
+     * rotated, only reopened on SIGHUP, which suits an external logrotate that moves them.
+     */
+    public LogRotation()
+    {
+        this(0, 0, 10, false);
+    }
+
+    private LogRotation(long maxBytes, long intervalMillis, int retainedSegments, boolean compress)
+    {
+        this.maxBytes = maxBytes;
+        this.intervalMillis = intervalMillis;
+        this.retainedSegments = retainedSegments;
+        this.compress = compress;
+    }
+
+    public LogRotation withMaxBytes(long maxBytes)
+    {
+        return new LogRotation(maxBytes, intervalMillis, retainedSegments, compress);
+    }
+
+    public LogRotation withInterval(long interval, TimeUnit unit)
+    {
+        return new LogRotation(maxBytes, unit.toMillis(interval), retainedSegments, compress);
+    }
+
+    /**
+     * Keep at most <code>segments</code> rotated files, deleting the oldest beyond that
+     */
+    public LogRotation withRetainedSegments(int segments)
+    {
+        return new LogRotation(maxBytes, intervalMillis, segments, compress);
+    }
+
+    /**
+     * Gzip rotated segments, on a background thread
+     */
+    public LogRotation withCompression(boolean compress)
+    {
+        return new LogRotation(maxBytes, intervalMillis, retainedSegments, compress);
+    }
+
+    long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    long getIntervalMillis()
+    {
+        return intervalMillis;
+    }
+
+    int getRetainedSegments()
+    {
+        return retainedSegments;
+    }
+
+    boolean isCompress()
+    {
+        return compress;
+    }
+}
@@ -0,0 +1,267 @@
+package org.skife.gressil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Runs in the child, rotating the files behind stdout and stderr as a {@link LogRotation} says.
+ * The new file is opened natively and dup2'd over descriptor 1 or 2, so everything writing to
+ * the descriptor, System.out included, carries on into the new file without noticing.
+ * <p/>
+ * Rotated segments are compressed on a thread of their own, so that a large one does not hold
+ * up checking the other file.
+ */
+class LogRotator
+{
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    private final MicroC       posix;
+    private final LogRotation  rotation;
+    private final List<Target> targets = new ArrayList<Target>();
+
+    private final ScheduledExecutorService executor   = Executors.newSingleThreadScheduledExecutor(threads("gressil-log-rotation"));
+    private final ExecutorService          compressor = Executors.newSingleThreadExecutor(threads("gressil-log-compression"));
+
+    LogRotator(MicroC posix, LogRotation rotation, File out, File err) throws IOException
+    {
+        this.posix = posix;
+        this.rotation = rotation;
+
+        Target stdout = isFile(out) ? new Target(out, 1) : null;
+        if (stdout != null) {
+            targets.add(stdout);
+        }
+        if (stdout != null && isFile(err) && out.getCanonicalFile().equals(err.getCanonicalFile())) {
+            stdout.fds.add(2);
+        }
+        else if (isFile(err)) {
+            targets.add(new Target(err, 2));
+        }
+    }
+
+    void start()
+    {
+        if (targets.isEmpty()) {
+            return;
+        }
+        executor.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                check();
+            }
+        }, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        Signals.handle("HUP", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        for (Target target : targets) {
+                            reopen(target);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void check()
+    {
+        long now = System.currentTimeMillis();
+        for (Target target : targets) {
+            boolean too_big = rotation.getMaxBytes() > 0 && target.file.length() >= rotation.getMaxBytes();
+            boolean too_old = rotation.getIntervalMillis() > 0 && now - target.openedAt >= rotation.getIntervalMillis();
+            if (too_big || too_old) {
+                try {
+                    rotate(target);
+                }
+                catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void rotate(Target target) throws IOException
+    {
+        int retain = rotation.getRetainedSegments();
+        File file = target.file;
+        if (retain < 1) {
+            if (!file.delete()) {
+                throw new IOException("unable to delete " + file);
+            }
+            reopen(target);
+            return;
+        }
+
+        // segment 1 is about to be renamed, which must wait for it to be compressed
+        awaitCompression(target);
+
+        delete(segment(file, retain, false));
+        delete(segment(file, retain, true));
+        for (int i = retain - 1; i >= 1; i--) {
+            segment(file, i, false).renameTo(segment(file, i + 1, false));
+            segment(file, i, true).renameTo(segment(file, i + 1, true));
+        }
+        File rotated = segment(file, 1, false);
+        if (!file.renameTo(rotated)) {
+            throw new IOException("unable to rename " + file + " to " + rotated);
+        }
+        reopen(target);
+
+        if (rotation.isCompress()) {
+            final File from = rotated;
+            final File to = segment(file, 1, true);
+            target.compressing = compressor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    compress(from, to);
+                }
+            });
+        }
+    }
+
+    private static void awaitCompression(Target target)
+    {
+        if (target.compressing == null) {
+            return;
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    target.compressing.get();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                catch (ExecutionException e) {
+                    // compress reports its own failures
+                    break;
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        target.compressing = null;
+    }
+
+    private void reopen(Target target)
+    {
+        // dup2 clears close-on-exec on the copies, it only keeps this one from leaking meanwhile
+        int append = Fcntl.O_WRONLY | Fcntl.O_CREAT | Fcntl.O_APPEND | Fcntl.O_CLOEXEC;
+        int fd = posix.open(target.file.getAbsolutePath(), append, 0644);
+        if (fd < 0) {
+            System.err.printf("unable to open %s: %s\n", target.file, posix.strerror(Fcntl.errno()));
+            return;
+        }
+        for (Integer std : target.fds) {
+            posix.dup2(fd, std);
+        }
+        posix.close(fd);
+        target.openedAt = System.currentTimeMillis();
+    }
+
+    private static void compress(File from, File to)
+    {
+        try {
+            InputStream in = new FileInputStream(from);
+            try {
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(to));
+                try {
+                    byte[] buf = new byte[64 * 1024];
+                    for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                        out.write(buf, 0, n);
+                    }
+                }
+                finally {
+                    out.close();
+                }
+            }
+            finally {
+                in.close();
+            }
+            delete(from);
+        }
+        catch (IOException e) {
+            // leave it uncompressed
+            System.err.printf("unable to compress %s: %s\n", from, e.getMessage());
+            delete(to);
+        }
+    }
+
+    private static File segment(File file, int n, boolean compressed)
+    {
+        return new File(file.getPath() + "." + n + (compressed ? ".gz" : ""));
+    }
+
+    private static void delete(File file)
+    {
+        if (file.exists() && !file.delete()) {
+            System.err.println("unable to delete " + file);
+        }
+    }
+
+    private static ThreadFactory threads(final String name)
+    {
+        return new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private static boolean isFile(File file)
+    {
+        return !file.getPath().startsWith("/dev/");
+    }
+
+    private static class Target
+    {
+        private final File          file;
+        private final List<Integer> fds = new ArrayList<Integer>();
+
+        private volatile long openedAt = System.currentTimeMillis();
+
+        // only touched on the rotation thread
+        private Future<?> compressing;
+
+        Target(File file, int fd)
+        {
+            this.file = file;
+            this.fds.add(fd);
+        }
+    }
+}
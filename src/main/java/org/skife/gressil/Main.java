@@ -2,6 +2,7 @@ package org.skife.gressil;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Class for testing, will be main class for jar
@@ -10,12 +11,12 @@ public class Main
 {
     public static void main(String[] args) throws IOException
     {
-        if (args.length != 1) {
-            System.err.println("java -jar gressil.jar start|stop|status");
+        if (args.length < 1) {
+            System.err.println("java -jar gressil.jar start|stop|status|reload|dump|metrics|signal NAME|query COMMAND");
             System.exit(1);
         }
         new Daemon().withPidFile(new File("gressil.pid"))
-                    .execute(DaemonCommand.valueOf(args[0]));
+                    .execute(DaemonCommand.valueOf(args[0]), Arrays.copyOfRange(args, 1, args.length));
 
         try
         {
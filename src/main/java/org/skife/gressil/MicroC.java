@@ -12,8 +12,52 @@ public interface MicroC
     String strerror(int errno);
     int kill(int pid, int signal);
 
-    int posix_spawnp(@Out IntByReference pid, @In CharSequence path,
+    int pipe(@Out int[] fds);
+    int pipe2(@Out int[] fds, int flags);
+    int open(@In CharSequence path, int flags, int mode);
+    int close(int fd);
+    int dup2(int fd, int newfd);
+    int fcntl(int fd, int cmd, int arg);
+    int fcntl(int fd, int cmd, Pointer arg);
+    int read(int fd, @Out byte[] buf, long count);
+    int write(int fd, @In byte[] buf, long count);
+    int poll(Pointer fds, int nfds, int timeout);
+    int waitpid(int pid, @Out IntByReference status, int options);
+    int waitid(int idtype, int id, Pointer infop, int options);
+    long syscall(long number, long arg1, long arg2);
+    long syscall(long number, long arg1, long arg2, long arg3);
+    int sched_setaffinity(int pid, long cpusetsize, Pointer mask);
+    int setrlimit(int resource, Pointer rlim);
+    int getsockname(int fd, Pointer addr, IntByReference addrlen);
+    int socket(int domain, int type, int protocol);
+    int bind(int fd, Pointer addr, int addrlen);
+    int listen(int fd, int backlog);
+    int accept(int fd, Pointer addr, IntByReference addrlen);
+    int accept4(int fd, Pointer addr, IntByReference addrlen, int flags);
+    int connect(int fd, Pointer addr, int addrlen);
+    int setsockopt(int fd, int level, int name, Pointer value, int length);
+    int getsockopt(int fd, int level, int name, Pointer value, IntByReference length);
+
+    int epoll_create1(int flags);
+    int epoll_ctl(int epfd, int op, int fd, Pointer event);
+    int epoll_wait(int epfd, Pointer events, int maxevents, int timeout);
+
+    int posix_spawnp(@Out IntByReference pid, @In Pointer path,
                      @In Pointer fileActions, @In Pointer attr,
-                     @In CharSequence[] argv, @In CharSequence[] envp);
+                     @In Pointer argv, @In Pointer envp);
+
+    int posix_spawn_file_actions_init(Pointer fileActions);
+    int posix_spawn_file_actions_destroy(Pointer fileActions);
+    int posix_spawn_file_actions_adddup2(Pointer fileActions, int fd, int newfd);
+    int posix_spawn_file_actions_addopen(Pointer fileActions, int fd, @In CharSequence path, int oflag, int mode);
+    int posix_spawn_file_actions_addchdir_np(Pointer fileActions, @In CharSequence path);
+
+    int posix_spawnattr_init(Pointer attr);
+    int posix_spawnattr_destroy(Pointer attr);
+    int posix_spawnattr_setflags(Pointer attr, short flags);
+    int posix_spawnattr_setsigmask(Pointer attr, Pointer sigmask);
+    int posix_spawnattr_setsigdefault(Pointer attr, Pointer sigdefault);
 
+    int sigemptyset(Pointer set);
+    int sigfillset(Pointer set);
 }
@@ -0,0 +1,116 @@
+package org.skife.gressil;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * A NULL terminated array of C strings, such as an argv or envp, encoded into native memory
+ * once so that it can be passed to any number of calls without being marshalled again.
+ */
+final class NativeStrings
+{
+    private static final jnr.ffi.Runtime runtime = jnr.ffi.Runtime.getSystemRuntime();
+
+    private final Pointer  strings;
+    private final long[]   addresses;
+    private final Pointer  array;
+    private final Object[] keepAlive;
+
+    NativeStrings(List<String> values)
+    {
+        byte[][] encoded = new byte[values.size()][];
+        int total = 0;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = values.get(i).getBytes(charset());
+            total += encoded[i].length + 1;
+        }
+
+        this.strings = Memory.allocateDirect(runtime, Math.max(total, 1), true);
+        this.addresses = new long[encoded.length];
+        long offset = 0;
+        for (int i = 0; i < encoded.length; i++) {
+            strings.put(offset, encoded[i], 0, encoded[i].length);
+            addresses[i] = strings.address() + offset;
+            offset += encoded[i].length + 1;
+        }
+        this.array = toArray(addresses);
+        this.keepAlive = new Object[0];
+    }
+
+    private NativeStrings(long[] addresses, Object... keepAlive)
+    {
+        this.strings = null;
+        this.addresses = addresses;
+        this.array = toArray(addresses);
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * An array of the strings here for which <code>include[i]</code> is true, followed by all
+     * of <code>more</code>. Only the pointers are copied, the strings themselves are shared.
+     */
+    NativeStrings concat(boolean[] include, NativeStrings more)
+    {
+        long[] combined = new long[addresses.length + more.addresses.length];
+        int n = 0;
+        for (int i = 0; i < addresses.length; i++) {
+            if (include[i]) {
+                combined[n++] = addresses[i];
+            }
+        }
+        System.arraycopy(more.addresses, 0, combined, n, more.addresses.length);
+        n += more.addresses.length;
+
+        long[] trimmed = new long[n];
+        System.arraycopy(combined, 0, trimmed, 0, n);
+        return new NativeStrings(trimmed, this, more);
+    }
+
+    /**
+     * The char** to pass to native code. It is only valid while this object is reachable.
+     */
+    Pointer getPointer()
+    {
+        return array;
+    }
+
+    /**
+     * The char* for string <code>index</code>, valid for as long as {@link #getPointer()} is
+     */
+    Pointer getString(int index)
+    {
+        return Pointer.wrap(runtime, addresses[index]);
+    }
+
+    /**
+     * The charset the JVM decoded our argv and environment with, so that they are passed on as
+     * the same bytes. This is sun.jnu.encoding, which file.encoding and so the default charset
+     * need not match.
+     */
+    static Charset charset()
+    {
+        String name = System.getProperty("sun.jnu.encoding");
+        try {
+            if (name != null) {
+                return Charset.forName(name);
+            }
+        }
+        catch (IllegalArgumentException e) {
+            // fall through to the default
+        }
+        return Charset.defaultCharset();
+    }
+
+    private static Pointer toArray(long[] addresses)
+    {
+        int size = runtime.addressSize();
+        Pointer array = Memory.allocateDirect(runtime, (addresses.length + 1) * size, true);
+        for (int i = 0; i < addresses.length; i++) {
+            array.putAddress(i * size, addresses[i]);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,218 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A pidfile with a lock beside it. The daemon holds a lock on <code>name.pid.lock</code> for as
+ * long as it runs, and the kernel drops the lock when it exits however it exits, so whether
+ * the lock is held says whether the daemon is running, regardless of stale pidfiles or
+ * recycled pids. The lock file is never deleted, as deleting it would let two daemons lock
+ * different files of the same name.
+ * <p/>
+ * The pidfile itself only ever holds the pid, and is written to a temporary file and renamed
+ * into place, so readers never see it half written. The lock file records the pid and start
+ * time of the process holding the lock, so that a pid can be checked before it is signalled.
+ */
+class PidFile
+{
+    enum LockState
+    {
+        HELD, FREE, MISSING
+    }
+
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    // held for the life of the daemon, the lock goes if the channel is collected
+    private static volatile FileChannel held;
+    private static volatile File        heldLock;
+
+    private final File file;
+    private final File lock;
+
+    PidFile(File file)
+    {
+        this.file = file;
+        this.lock = new File(file.getPath() + ".lock");
+    }
+
+    /**
+     * Take the lock and write our pid, for the life of this process.
+     *
+     * @param wait if the lock is held, wait for it to be released rather than failing. The pid
+     *             is written straight away, as when taking over from a daemon which is handing off.
+     * @return false if the lock is held by another process and we were not to wait for it
+     */
+    boolean acquire(final int pid, boolean wait) throws IOException
+    {
+        final FileChannel channel = new RandomAccessFile(lock, "rw").getChannel();
+        if (channel.tryLock() == null) {
+            if (!wait) {
+                channel.close();
+                return false;
+            }
+            write(pid);
+            Thread waiter = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        channel.lock();
+                        record(channel, pid);
+                    }
+                    catch (IOException e) {
+                        System.err.println("unable to lock " + lock + ": " + e.getMessage());
+                    }
+                }
+            }, "gressil-pidfile-lock");
+            waiter.setDaemon(true);
+            waiter.start();
+            held = channel;
+            heldLock = lock;
+            return true;
+        }
+        record(channel, pid);
+        held = channel;
+        heldLock = lock;
+        write(pid);
+        return true;
+    }
+
+    /**
+     * Whether some process holds the lock, or MISSING if there is no lock file, as for a daemon
+     * started by an older version
+     */
+    LockState getLockState()
+    {
+        if (!lock.exists()) {
+            return LockState.MISSING;
+        }
+        if (lock.equals(heldLock)) {
+            // closing any descriptor for the file would release our lock, so do not open it
+            return LockState.HELD;
+        }
+        // ask rather than try to take the lock, as holding it even for a moment would make a
+        // daemon starting up at that moment think another was already running
+        int fd = posix.open(lock.getPath(), Fcntl.O_RDONLY | Fcntl.O_CLOEXEC, 0);
+        if (fd < 0) {
+            return LockState.MISSING;
+        }
+        try {
+            return Fcntl.isLockedByOther(posix, fd) ? LockState.HELD : LockState.FREE;
+        }
+        catch (IOException e) {
+            return LockState.MISSING;
+        }
+        finally {
+            posix.close(fd);
+        }
+    }
+
+    boolean exists()
+    {
+        return file.exists();
+    }
+
+    int readPid() throws IOException
+    {
+        byte[] content = Files.readAllBytes(file.toPath());
+        return Integer.parseInt(new String(content, StandardCharsets.UTF_8).trim());
+    }
+
+    /**
+     * False if the lock file says <code>pid</code> started at some other time than the process
+     * which now has that pid, meaning the pid has been recycled. True if there is nothing to
+     * go on.
+     */
+    boolean isSameProcess(int pid)
+    {
+        if (lock.equals(heldLock)) {
+            return true;
+        }
+        try {
+            String[] recorded = new String(Files.readAllBytes(lock.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+            if (recorded.length != 2 || Integer.parseInt(recorded[0]) != pid || "-".equals(recorded[1])) {
+                return true;
+            }
+            String started = startTime(pid);
+            return started == null || started.equals(recorded[1]);
+        }
+        catch (IOException e) {
+            return true;
+        }
+        catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Delete the pidfile, if it still holds <code>pid</code>
+     */
+    void deleteIfOurs(int pid)
+    {
+        try {
+            if (readPid() == pid) {
+                file.delete();
+            }
+        }
+        catch (IOException e) {
+            // already gone
+        }
+        catch (NumberFormatException e) {
+            // not ours
+        }
+    }
+
+    private void write(int pid) throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp" + pid);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(String.valueOf(pid).getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void record(FileChannel channel, int pid) throws IOException
+    {
+        String started = startTime(pid);
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap((pid + " " + (started == null ? "-" : started) + "\n").getBytes(StandardCharsets.UTF_8)), 0);
+        channel.force(false);
+    }
+
+    /**
+     * When <code>pid</code> started, in clock ticks since boot, from /proc/pid/stat. Null where
+     * there is no procfs or no such process.
+     */
+    static String startTime(int pid)
+    {
+        try {
+            String stat = new String(Files.readAllBytes(new File("/proc/" + pid + "/stat").toPath()), StandardCharsets.UTF_8);
+            // the command name is in parens and may contain spaces, count fields after it
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            // starttime is field 22, the first after the parens is field 3
+            return fields[19];
+        }
+        catch (IOException e) {
+            return null;
+        }
+        catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
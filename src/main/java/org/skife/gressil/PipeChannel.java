@@ -0,0 +1,141 @@
+package org.skife.gressil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+
+/**
+ * A blocking channel over our end of a pipe to a spawned process. The descriptor stays
+ * close-on-exec, so it never leaks into other children, which for a child's stdin would keep it
+ * from ever seeing EOF.
+ * <p/>
+ * Closing while another thread is reading or writing leaves the descriptor open until that call
+ * returns, so that its number cannot be reused for some other file under it.
+ */
+final class PipeChannel implements ByteChannel
+{
+    private static final int CHUNK = 8192;
+
+    private final MicroC posix;
+    private final int    fd;
+
+    // the reads and writes in progress, the last one out after a close closes the descriptor
+    private final    Object  state = new Object();
+    private volatile boolean open  = true;
+    private          int     users = 0;
+
+    // reads and writes go through these, as jnr only marshals arrays from their start
+    private final byte[] readBuffer  = new byte[CHUNK];
+    private final byte[] writeBuffer = new byte[CHUNK];
+
+    PipeChannel(MicroC posix, int fd)
+    {
+        this.posix = posix;
+        this.fd = fd;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        synchronized (readBuffer) {
+            begin();
+            try {
+                if (!dst.hasRemaining()) {
+                    return 0;
+                }
+                int n;
+                do {
+                    n = posix.read(fd, readBuffer, Math.min(dst.remaining(), CHUNK));
+                }
+                while (n < 0 && Fcntl.errno() == Fcntl.EINTR);
+                if (n < 0) {
+                    throw new IOException(posix.strerror(Fcntl.errno()));
+                }
+                if (n == 0) {
+                    return -1;
+                }
+                dst.put(readBuffer, 0, n);
+                return n;
+            }
+            finally {
+                end();
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        synchronized (writeBuffer) {
+            begin();
+            try {
+                int total = 0;
+                while (src.hasRemaining()) {
+                    int length = Math.min(src.remaining(), CHUNK);
+                    src.get(writeBuffer, 0, length);
+                    int offset = 0;
+                    while (offset < length) {
+                        int n = offset == 0
+                                ? posix.write(fd, writeBuffer, length)
+                                : posix.write(fd, Arrays.copyOfRange(writeBuffer, offset, length), length - offset);
+                        if (n < 0) {
+                            if (Fcntl.errno() == Fcntl.EINTR) {
+                                continue;
+                            }
+                            // EPIPE once the child has gone, the JVM ignores SIGPIPE
+                            throw new IOException(posix.strerror(Fcntl.errno()));
+                        }
+                        offset += n;
+                        total += n;
+                    }
+                }
+                return total;
+            }
+            finally {
+                end();
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (state) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            if (users == 0) {
+                posix.close(fd);
+            }
+        }
+    }
+
+    private void begin() throws ClosedChannelException
+    {
+        synchronized (state) {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            users++;
+        }
+    }
+
+    private void end()
+    {
+        synchronized (state) {
+            users--;
+            if (users == 0 && !open) {
+                posix.close(fd);
+            }
+        }
+    }
+}
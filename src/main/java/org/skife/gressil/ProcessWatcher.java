@@ -0,0 +1,345 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+import jnr.ffi.Memory;
+import jnr.ffi.Platform;
+import jnr.ffi.Pointer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells you when processes exit, without polling each one. On Linux 5.3 and later each watched
+ * process gets a pidfd, and a single thread waits on all of them with epoll, so watching hundreds
+ * of processes costs one thread and no wakeups until something actually exits. A pidfd refers to
+ * the process itself rather than its pid, so pid reuse cannot fool it.
+ * <p/>
+ * Elsewhere a single thread probes the watched pids with <code>kill(pid, 0)</code> ten times a
+ * second instead. Note that a child of this process which has exited but not been reaped still
+ * exists as far as that probe is concerned.
+ * <p/>
+ * Listeners are called on the watcher thread, so should not block.
+ */
+public class ProcessWatcher implements Closeable
+{
+    public interface ExitListener
+    {
+        void exited(int pid);
+    }
+
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    private static final boolean LINUX = Platform.getNativePlatform().getOS() == Platform.OS.LINUX;
+
+    private static final long SYS_PIDFD_OPEN = 434;
+
+    private static final int EPOLL_CLOEXEC = 02000000;
+    private static final int EPOLL_CTL_ADD = 1;
+    private static final int EPOLL_CTL_DEL = 2;
+    private static final int EPOLLIN       = 1;
+    private static final int ESRCH         = 3;
+
+    // struct epoll_event { uint32_t events; uint64_t data; } is packed on x86_64 only
+    private static final boolean PACKED_EVENTS   = Platform.getNativePlatform().getCPU() == Platform.CPU.X86_64;
+    private static final int     SIZEOF_EVENT    = PACKED_EVENTS ? 12 : 16;
+    private static final int     EVENT_DATA      = PACKED_EVENTS ? 4 : 8;
+    private static final int     MAX_EVENTS      = 64;
+    private static final long    PROBE_INTERVAL  = 100;
+
+    private static ProcessWatcher shared;
+
+    private final Map<Integer, Watch> watches = new HashMap<Integer, Watch>();
+
+    private final int epollFd;
+    private final int wakeRead;
+    private final int wakeWrite;
+
+    private volatile boolean closed = false;
+    private Thread thread;
+
+    public ProcessWatcher() throws IOException
+    {
+        this(hasPidfds());
+    }
+
+    /**
+     * A watcher which waits on pidfds if <code>pidfds</code>, which needs {@link #hasPidfds()},
+     * and otherwise probes
+     */
+    ProcessWatcher(boolean pidfds) throws IOException
+    {
+        int epfd = pidfds ? posix.epoll_create1(EPOLL_CLOEXEC) : -1;
+        if (epfd >= 0) {
+            int[] wake = Fcntl.pipe(posix);
+            wakeRead = wake[0];
+            wakeWrite = wake[1];
+            control(epfd, EPOLL_CTL_ADD, wakeRead);
+        }
+        else {
+            wakeRead = -1;
+            wakeWrite = -1;
+        }
+        this.epollFd = epfd;
+    }
+
+    /**
+     * The watcher used for the processes Gressil starts and has to reap, created on first use
+     */
+    static synchronized ProcessWatcher shared() throws IOException
+    {
+        if (shared == null) {
+            shared = new ProcessWatcher();
+        }
+        return shared;
+    }
+
+    /**
+     * Call <code>listener</code> once <code>pid</code> exits. If it has already exited the
+     * listener is called before this returns.
+     */
+    public void watch(int pid, ExitListener listener)
+    {
+        synchronized (watches) {
+            if (closed) {
+                throw new IllegalStateException("watcher has been closed");
+            }
+            Watch watch = epollFd >= 0 ? watchPidfd(pid) : watchProbe(pid);
+            if (watch != null) {
+                watch.listeners.add(listener);
+                startThread();
+                return;
+            }
+        }
+        listener.exited(pid);
+    }
+
+    /**
+     * Wait for <code>pid</code> to exit.
+     *
+     * @return true if it exited, false if the timeout passed first
+     */
+    public boolean awaitExit(int pid, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        watch(pid, new ExitListener()
+        {
+            @Override
+            public void exited(int pid)
+            {
+                latch.countDown();
+            }
+        });
+        return latch.await(timeout, unit);
+    }
+
+    /**
+     * Stop watching. Listeners which have not been called will not be.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (watches) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (thread == null) {
+                if (epollFd >= 0) {
+                    releasePidfds();
+                }
+            }
+            else if (epollFd >= 0) {
+                posix.write(wakeWrite, new byte[]{1}, 1);
+            }
+            else {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Whether exits are seen via pidfds. The fallback probe cannot tell an exited but unreaped
+     * child of ours from a live one.
+     */
+    boolean usesPidfds()
+    {
+        return epollFd >= 0;
+    }
+
+    private Watch watchPidfd(int pid)
+    {
+        for (Watch existing : watches.values()) {
+            if (existing.pid == pid) {
+                return existing;
+            }
+        }
+        int fd = (int) posix.syscall(SYS_PIDFD_OPEN, pid, 0);
+        if (fd < 0) {
+            // ESRCH, it is already gone
+            return null;
+        }
+        posix.fcntl(fd, Fcntl.F_SETFD, Fcntl.FD_CLOEXEC);
+        Watch watch = new Watch(pid);
+        watches.put(fd, watch);
+        control(epollFd, EPOLL_CTL_ADD, fd);
+        return watch;
+    }
+
+    private Watch watchProbe(int pid)
+    {
+        if (!isAlive(pid)) {
+            return null;
+        }
+        Watch watch = watches.get(pid);
+        if (watch == null) {
+            watch = new Watch(pid);
+            watches.put(pid, watch);
+        }
+        return watch;
+    }
+
+    private void startThread()
+    {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (epollFd >= 0) {
+                    pollPidfds();
+                }
+                else {
+                    probe();
+                }
+            }
+        }, "gressil-process-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void pollPidfds()
+    {
+        Pointer events = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), SIZEOF_EVENT * MAX_EVENTS);
+        try {
+            while (!closed) {
+                int n = posix.epoll_wait(epollFd, events, MAX_EVENTS, -1);
+                for (int i = 0; i < n; i++) {
+                    int fd = (int) events.getLong(i * SIZEOF_EVENT + EVENT_DATA);
+                    if (fd == wakeRead) {
+                        continue;
+                    }
+
+                    Watch watch;
+                    synchronized (watches) {
+                        watch = watches.remove(fd);
+                        control(epollFd, EPOLL_CTL_DEL, fd);
+                        posix.close(fd);
+                    }
+                    if (watch != null && !closed) {
+                        watch.fire();
+                    }
+                }
+            }
+        }
+        finally {
+            synchronized (watches) {
+                releasePidfds();
+            }
+        }
+    }
+
+    private void releasePidfds()
+    {
+        for (Integer fd : watches.keySet()) {
+            posix.close(fd);
+        }
+        watches.clear();
+        posix.close(wakeRead);
+        posix.close(wakeWrite);
+        posix.close(epollFd);
+    }
+
+    private void probe()
+    {
+        while (!closed) {
+            List<Watch> exited = new ArrayList<Watch>();
+            synchronized (watches) {
+                for (Watch watch : new ArrayList<Watch>(watches.values())) {
+                    if (!isAlive(watch.pid)) {
+                        watches.remove(watch.pid);
+                        exited.add(watch);
+                    }
+                }
+            }
+            for (Watch watch : exited) {
+                watch.fire();
+            }
+            try {
+                Thread.sleep(PROBE_INTERVAL);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    static boolean isAlive(int pid)
+    {
+        // EPERM means it exists but is not ours to signal
+        return posix.kill(pid, 0) == 0 || Fcntl.errno() != ESRCH;
+    }
+
+    private static void control(int epfd, int op, int fd)
+    {
+        Pointer event = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), SIZEOF_EVENT);
+        event.putInt(0, EPOLLIN);
+        event.putLong(EVENT_DATA, fd);
+        posix.epoll_ctl(epfd, op, fd, event);
+    }
+
+    static boolean hasPidfds()
+    {
+        if (!LINUX) {
+            return false;
+        }
+        int fd = (int) posix.syscall(SYS_PIDFD_OPEN, posix.getpid(), 0);
+        if (fd < 0) {
+            // ENOSYS on kernels before 5.3, or blocked by seccomp
+            return false;
+        }
+        posix.close(fd);
+        return true;
+    }
+
+    private static class Watch
+    {
+        private final int                pid;
+        private final List<ExitListener> listeners = new ArrayList<ExitListener>();
+
+        Watch(int pid)
+        {
+            this.pid = pid;
+        }
+
+        void fire()
+        {
+            for (ExitListener listener : listeners) {
+                try {
+                    listener.exited(pid);
+                }
+                catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
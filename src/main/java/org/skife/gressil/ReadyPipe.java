@@ -0,0 +1,155 @@
+package org.skife.gressil;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.byref.IntByReference;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The readiness handshake between a parent and the daemon it spawned. The parent keeps the
+ * read end of a pipe, the child gets the write end (named by {@link #ENV_NAME}) and writes a ready
+ * byte to it from {@link Daemon#notifyReady()}, followed by its side of the {@link StartupReport}.
+ * If the child dies first the parent sees EOF instead, and reaps it for the exit code.
+ */
+class ReadyPipe
+{
+    static final String ENV_NAME = Daemon.class.getName() + ".ready_fd";
+
+    private static final byte READY = 'R';
+
+    // well under PIPE_BUF, so the message is written and read in one go
+    private static final int MAX_MESSAGE = 512;
+
+    private static boolean notified = false;
+
+    private final MicroC posix;
+    private final int    readFd;
+    private final int    writeFd;
+
+    private ReadyPipe(MicroC posix, int readFd, int writeFd)
+    {
+        this.posix = posix;
+        this.readFd = readFd;
+        this.writeFd = writeFd;
+    }
+
+    static ReadyPipe open(MicroC posix) throws IOException
+    {
+        int[] fds = Fcntl.pipe(posix);
+        return new ReadyPipe(posix, fds[0], fds[1]);
+    }
+
+    int getWriteFd()
+    {
+        return writeFd;
+    }
+
+    /**
+     * Called in the parent once the child has been spawned (or failed to spawn), the child
+     * has its own copy of the write end by then.
+     */
+    void closeWriteEnd()
+    {
+        posix.close(writeFd);
+    }
+
+    /**
+     * Wait for the child to report it is ready, to die, or for the timeout to pass, whichever
+     * comes first. The child's startup phases are recorded in <code>report</code>.
+     */
+    Status await(int pid, long timeoutMillis, StartupReport report)
+    {
+        try {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            Pointer pollfd = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), Fcntl.SIZEOF_POLLFD);
+            pollfd.putInt(0, readFd);
+            pollfd.putShort(4, Fcntl.POLLIN);
+
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                pollfd.putShort(6, (short) 0);
+                int rs = posix.poll(pollfd, 1, (int) Math.min(remaining, Integer.MAX_VALUE));
+                if (rs <= 0) {
+                    // timed out, or interrupted by a signal, either way check the clock again
+                    continue;
+                }
+
+                byte[] buf = new byte[MAX_MESSAGE];
+                int n = posix.read(readFd, buf, MAX_MESSAGE);
+                if (n > 0 && buf[0] == READY) {
+                    report.decode(new String(buf, 1, n - 1, StandardCharsets.US_ASCII));
+                    return Status.ready(pid);
+                }
+                return reap(pid, deadline);
+            }
+            return Status.timedOut(pid);
+        }
+        finally {
+            close();
+        }
+    }
+
+    void close()
+    {
+        posix.close(readFd);
+    }
+
+    /**
+     * EOF on the pipe means the child closed it without saying it was ready, usually because
+     * it exited. The exit status may lag the close slightly, so poll for it until the deadline.
+     */
+    private Status reap(int pid, long deadline)
+    {
+        IntByReference status = new IntByReference();
+        do {
+            int rs = posix.waitpid(pid, status, WaitStatus.WNOHANG);
+            if (rs == pid) {
+                return Status.failed(pid, WaitStatus.exitCode(status.getValue()));
+            }
+            if (rs < 0) {
+                // not our child, or already reaped, nothing more to learn
+                return Status.failed(pid, -1);
+            }
+            try {
+                Thread.sleep(1);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        while (System.currentTimeMillis() < deadline);
+        return Status.failed(pid, -1);
+    }
+
+    /**
+     * Called in the child, tells the parent we are ready. Does nothing if the parent did not
+     * ask to be told, or if we have already told it.
+     */
+    static synchronized void notifyReady(MicroC posix, StartupReport report)
+    {
+        String fd = System.getenv(ENV_NAME);
+        if (fd == null || notified) {
+            return;
+        }
+        notified = true;
+        int child_fd = Integer.parseInt(fd);
+        byte[] message = ((char) READY + report.encode(StartupReport.Phase.JVM_STARTED) + "\n").getBytes(StandardCharsets.US_ASCII);
+        posix.write(child_fd, message, message.length);
+        posix.close(child_fd);
+    }
+
+    /**
+     * Keep the write end out of anything the daemon itself spawns, otherwise the parent will
+     * not see EOF if we die before becoming ready.
+     */
+    static void adopt(MicroC posix)
+    {
+        String fd = System.getenv(ENV_NAME);
+        if (fd != null) {
+            posix.fcntl(Integer.parseInt(fd), Fcntl.F_SETFD, Fcntl.FD_CLOEXEC);
+        }
+    }
+}
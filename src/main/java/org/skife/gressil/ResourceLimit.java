@@ -0,0 +1,50 @@
+package org.skife.gressil;
+
+import jnr.ffi.Platform;
+
+/**
+ * The resource limits {@link Daemon#withResourceLimit(ResourceLimit, long, long)} can set, see
+ * setrlimit(2).
+ */
+public enum ResourceLimit
+{
+    CPU(0, 0),
+    FSIZE(1, 1),
+    DATA(2, 2),
+    STACK(3, 3),
+    CORE(4, 4),
+    NPROC(6, 7),
+    NOFILE(7, 8),
+    MEMLOCK(8, 6),
+    AS(9, 5);
+
+    /**
+     * No limit, RLIM_INFINITY
+     */
+    public static final long UNLIMITED = -1;
+
+    private static final boolean DARWIN = Platform.getNativePlatform().getOS() == Platform.OS.DARWIN;
+
+    private final int linux;
+    private final int darwin;
+
+    ResourceLimit(int linux, int darwin)
+    {
+        this.linux = linux;
+        this.darwin = darwin;
+    }
+
+    int getResource()
+    {
+        return DARWIN ? darwin : linux;
+    }
+
+    static long toNative(long limit)
+    {
+        if (limit == UNLIMITED) {
+            // RLIM_INFINITY is all ones on linux, and the largest signed value on darwin
+            return DARWIN ? Long.MAX_VALUE : -1L;
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,140 @@
+package org.skife.gressil;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Signal handling via <code>sun.misc.Signal</code>, looked up reflectively so that we compile
+ * and run where it is missing. Handlers run one at a time on a single thread, never on the
+ * thread the JVM delivers the signal on.
+ */
+final class Signals
+{
+    private static final ExecutorService dispatch = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "gressil-signals");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // the JVM exits on TERM, handling it should not stop that
+    private static final List<String> CHAINED = Collections.singletonList("TERM");
+
+    private static final Map<String, List<Runnable>> actions = new HashMap<String, List<Runnable>>();
+
+    private Signals()
+    {
+    }
+
+    /**
+     * Run <code>action</code> each time this process receives the signal <code>name</code>,
+     * which is the name without the SIG prefix, such as "HUP". Actions for the same signal run
+     * in the order they were added. Replaces any handler the JVM had for it, except for TERM,
+     * where the JVM's handler runs after ours.
+     *
+     * @return false if the signal cannot be handled on this JVM
+     */
+    static synchronized boolean handle(String name, Runnable action)
+    {
+        List<Runnable> existing = actions.get(name);
+        if (existing != null) {
+            existing.add(action);
+            return true;
+        }
+
+        final List<Runnable> handlers = new CopyOnWriteArrayList<Runnable>(Collections.singletonList(action));
+        try {
+            Class<?> signal = Class.forName("sun.misc.Signal");
+            final Class<?> handler = Class.forName("sun.misc.SignalHandler");
+            final boolean chained = CHAINED.contains(name);
+            final Object[] previous = new Object[1];
+            Object proxy = Proxy.newProxyInstance(Signals.class.getClassLoader(), new Class<?>[]{handler}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, final Object[] args) throws Throwable
+                {
+                    if ("handle".equals(method.getName())) {
+                        dispatch.execute(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                for (Runnable each : handlers) {
+                                    try {
+                                        each.run();
+                                    }
+                                    catch (RuntimeException e) {
+                                        System.err.println("signal handler failed: " + e);
+                                    }
+                                }
+                                if (chained) {
+                                    chain(handler, previous[0], args[0]);
+                                }
+                            }
+                        });
+                        return null;
+                    }
+                    return method.invoke(this, args);
+                }
+            });
+            previous[0] = signal.getMethod("handle", signal, handler)
+                                .invoke(null, signal.getConstructor(String.class).newInstance(name), proxy);
+            actions.put(name, handlers);
+            return true;
+        }
+        catch (InvocationTargetException e) {
+            // the JVM reserves this signal for itself
+            System.err.printf("unable to handle SIG%s: %s\n", name, e.getCause().getMessage());
+            return false;
+        }
+        catch (Exception e) {
+            // no sun.misc.Signal
+            System.err.printf("unable to handle SIG%s: %s\n", name, e);
+            return false;
+        }
+    }
+
+    /**
+     * Pass <code>signal</code> on to the handler the JVM had for it. The JVM's default action
+     * cannot be called from Java, so for that exit as it would have.
+     */
+    private static void chain(Class<?> handlerClass, Object previous, Object signal)
+    {
+        try {
+            if (previous == handlerClass.getField("SIG_IGN").get(null)) {
+                return;
+            }
+            handlerClass.getMethod("handle", signal.getClass()).invoke(previous, signal);
+        }
+        catch (Exception e) {
+            // SIG_DFL throws if called
+            exit(signal);
+        }
+    }
+
+    private static void exit(Object signal)
+    {
+        int number;
+        try {
+            number = (Integer) signal.getClass().getMethod("getNumber").invoke(signal);
+        }
+        catch (Exception e) {
+            number = 15;
+        }
+        System.exit(128 + number);
+    }
+}
@@ -0,0 +1,128 @@
+package org.skife.gressil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * How to size a child's JVM for its share of the host, see {@link Daemon#withSizing(SizingProfile)}.
+ * The heap is a share of the cgroup's memory.max, less a fixed allowance for metaspace, code
+ * cache and thread stacks, and the processor count is cpu.max rounded up. Where there is no
+ * memory limit the share is given as -XX:MaxRAMPercentage instead, and where there is no CPU
+ * quota the child's JVM works out its processor count for itself, as it normally would.
+ */
+public enum SizingProfile
+{
+    /**
+     * Short pauses: a fixed size heap, and ZGC where the JVM has it (JDK 15 and later) and the
+     * heap is big enough to make it worthwhile, otherwise G1 aiming for 50ms pauses
+     */
+    LATENCY(60),
+
+    /**
+     * The most work done per CPU: a fixed size heap and the parallel collector
+     */
+    THROUGHPUT(75),
+
+    /**
+     * As little memory as will do: the serial collector, a heap which may shrink, and no C2
+     * compiler, for the many small daemons sharing a host
+     */
+    SMALL_FOOTPRINT(50);
+
+    private static final long MB = 1024 * 1024;
+
+    // left outside the heap for metaspace, code cache, thread stacks and the like
+    private static final long RESERVED_MB = 64;
+    private static final long MIN_HEAP_MB = 16;
+    private static final long MIN_ZGC_HEAP_MB = 2048;
+
+    private static final String FORK_JOIN_PARALLELISM = "-Djava.util.concurrent.ForkJoinPool.common.parallelism=";
+
+    // the flags we set, to be dropped from our own command line when passing it on
+    private static final Pattern SIZING_ARG = Pattern.compile(
+        "-Xm[xs].*|-XX:(Max|Min|Initial)RAMPercentage=.*|-XX:MaxRAM=.*|-XX:[+-]Use\\w+GC"
+        + "|-XX:(ActiveProcessorCount|ParallelGCThreads|ConcGCThreads|MaxGCPauseMillis|TieredStopAtLevel)=.*"
+        + "|" + Pattern.quote(FORK_JOIN_PARALLELISM) + ".*");
+
+    private final int heapPercent;
+
+    SizingProfile(int heapPercent)
+    {
+        this.heapPercent = heapPercent;
+    }
+
+    /**
+     * @param memoryBytes the child's memory limit, or -1 if it has none
+     * @param cpus        the child's CPU quota in CPUs, or -1 if it has none
+     * @param javaFeature the child's Java feature release, as it is started with our JVM
+     */
+    List<String> getJvmArgs(long memoryBytes, double cpus, int javaFeature)
+    {
+        List<String> args = new ArrayList<String>();
+
+        long heapMb = -1;
+        if (memoryBytes > 0) {
+            heapMb = Math.max(MIN_HEAP_MB, (memoryBytes / MB - RESERVED_MB) * heapPercent / 100);
+            args.add("-Xmx" + heapMb + "m");
+            if (this != SMALL_FOOTPRINT) {
+                // no pauses to grow the heap, we have the memory anyway
+                args.add("-Xms" + heapMb + "m");
+            }
+        }
+        else if (javaFeature >= 10) {
+            args.add("-XX:MaxRAMPercentage=" + heapPercent);
+        }
+
+        switch (this) {
+            case LATENCY:
+                if (javaFeature >= 15 && heapMb >= MIN_ZGC_HEAP_MB) {
+                    args.add("-XX:+UseZGC");
+                }
+                else {
+                    args.add("-XX:+UseG1GC");
+                    args.add("-XX:MaxGCPauseMillis=50");
+                }
+                break;
+            case THROUGHPUT:
+                args.add("-XX:+UseParallelGC");
+                break;
+            case SMALL_FOOTPRINT:
+                args.add("-XX:+UseSerialGC");
+                args.add("-XX:TieredStopAtLevel=1");
+                break;
+        }
+
+        if (cpus > 0) {
+            int processors = (int) Math.ceil(cpus);
+            if (javaFeature >= 10) {
+                // also what Runtime.availableProcessors() says, which most pools are sized from
+                args.add("-XX:ActiveProcessorCount=" + processors);
+            }
+            if (this != SMALL_FOOTPRINT) {
+                args.add("-XX:ParallelGCThreads=" + processors);
+            }
+            if (javaFeature >= 8) {
+                args.add(FORK_JOIN_PARALLELISM + Math.max(1, processors - 1));
+            }
+        }
+        return args;
+    }
+
+    /**
+     * Drop the heap, collector and processor flags from the JVM options of <code>argv</code>,
+     * leaving the main args alone
+     */
+    static List<String> withoutSizingArgs(List<String> argv)
+    {
+        int mainArgs = LinuxArgvFinder.mainArgsStart(argv);
+        List<String> rs = new ArrayList<String>(argv.size());
+        for (int i = 0; i < argv.size(); i++) {
+            String arg = argv.get(i);
+            if (i == 0 || i >= mainArgs || !SIZING_ARG.matcher(arg).matches()) {
+                rs.add(arg);
+            }
+        }
+        return rs;
+    }
+}
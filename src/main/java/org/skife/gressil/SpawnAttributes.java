@@ -0,0 +1,75 @@
+package org.skife.gressil;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Platform;
+import jnr.ffi.Pointer;
+
+/**
+ * Wraps a native posix_spawnattr_t. The child starts with no signals blocked and every signal
+ * at its default disposition, rather than whatever the spawning JVM thread happened to have,
+ * and normally in a new session.
+ */
+class SpawnAttributes
+{
+    // glibc uses 336 bytes, darwin a single pointer, be generous
+    private static final int SIZEOF_ATTR   = 1024;
+    // glibc uses 128 bytes, darwin 4
+    private static final int SIZEOF_SIGSET = 128;
+
+    private static final boolean DARWIN = Platform.getNativePlatform().getOS() == Platform.OS.DARWIN;
+
+    private static final short POSIX_SPAWN_SETSIGDEF  = 0x04;
+    private static final short POSIX_SPAWN_SETSIGMASK = 0x08;
+    private static final short POSIX_SPAWN_SETSID     = DARWIN ? (short) 0x400 : (short) 0x80;
+
+    private final MicroC  posix;
+    private final Pointer pointer;
+    private final Pointer emptySet;
+    private final Pointer fullSet;
+
+    SpawnAttributes(MicroC posix)
+    {
+        this(posix, true);
+    }
+
+    SpawnAttributes(MicroC posix, boolean newSession)
+    {
+        jnr.ffi.Runtime runtime = jnr.ffi.Runtime.getSystemRuntime();
+        this.posix = posix;
+        this.pointer = Memory.allocateDirect(runtime, SIZEOF_ATTR);
+        this.emptySet = Memory.allocateDirect(runtime, SIZEOF_SIGSET);
+        this.fullSet = Memory.allocateDirect(runtime, SIZEOF_SIGSET);
+
+        check(posix.posix_spawnattr_init(pointer));
+        posix.sigemptyset(emptySet);
+        posix.sigfillset(fullSet);
+        check(posix.posix_spawnattr_setsigmask(pointer, emptySet));
+        check(posix.posix_spawnattr_setsigdefault(pointer, fullSet));
+
+        short flags = POSIX_SPAWN_SETSIGDEF | POSIX_SPAWN_SETSIGMASK;
+        if (!newSession) {
+            check(posix.posix_spawnattr_setflags(pointer, flags));
+        }
+        else if (posix.posix_spawnattr_setflags(pointer, (short) (flags | POSIX_SPAWN_SETSID)) != 0) {
+            // older libc without POSIX_SPAWN_SETSID, the child will call setsid() itself
+            check(posix.posix_spawnattr_setflags(pointer, flags));
+        }
+    }
+
+    Pointer getPointer()
+    {
+        return pointer;
+    }
+
+    void destroy()
+    {
+        posix.posix_spawnattr_destroy(pointer);
+    }
+
+    private void check(int rs)
+    {
+        if (rs != 0) {
+            throw new RuntimeException(posix.strerror(rs));
+        }
+    }
+}
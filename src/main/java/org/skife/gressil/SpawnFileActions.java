@@ -0,0 +1,98 @@
+package org.skife.gressil;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wraps a native posix_spawn_file_actions_t, which is applied in the child between
+ * the spawn and the exec of the new program.
+ */
+class SpawnFileActions
+{
+    // glibc uses 80 bytes, darwin a single pointer, be generous
+    private static final int SIZEOF_FILE_ACTIONS = 256;
+
+    private final MicroC  posix;
+    private final Pointer pointer;
+
+    private final List<Integer> temporaries = new ArrayList<Integer>();
+
+    SpawnFileActions(MicroC posix)
+    {
+        this.posix = posix;
+        this.pointer = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), SIZEOF_FILE_ACTIONS);
+        check(posix.posix_spawn_file_actions_init(pointer));
+    }
+
+    /**
+     * Make each of <code>fds</code> available in the child as consecutive descriptors starting at
+     * <code>first</code>. Each is first duplicated above that range in this process, so placing
+     * one in the child cannot clobber another which has yet to be placed, and so the dup2 never
+     * has the same source and target (which would leave close-on-exec set).
+     */
+    SpawnFileActions inherit(List<Integer> fds, int first)
+    {
+        int above = first + fds.size();
+        for (int i = 0; i < fds.size(); i++) {
+            int tmp = posix.fcntl(fds.get(i), Fcntl.F_DUPFD_CLOEXEC, above);
+            if (tmp < 0) {
+                throw new RuntimeException(posix.strerror(Fcntl.errno()));
+            }
+            temporaries.add(tmp);
+            check(posix.posix_spawn_file_actions_adddup2(pointer, tmp, first + i));
+        }
+        return this;
+    }
+
+    /**
+     * Open <code>path</code> as <code>fd</code> in the child
+     */
+    SpawnFileActions open(int fd, File path, int oflag, int mode)
+    {
+        check(posix.posix_spawn_file_actions_addopen(pointer, fd, path.getAbsolutePath(), oflag, mode));
+        return this;
+    }
+
+    /**
+     * Change to <code>directory</code> in the child. Needs glibc 2.29 or Mac OS X 10.15.
+     */
+    SpawnFileActions chdir(File directory)
+    {
+        try {
+            check(posix.posix_spawn_file_actions_addchdir_np(pointer, directory.getAbsolutePath()));
+        }
+        catch (UnsatisfiedLinkError e) {
+            throw new UnsupportedOperationException("this libc cannot change directory in a spawned child");
+        }
+        return this;
+    }
+
+    Pointer getPointer()
+    {
+        return pointer;
+    }
+
+    /**
+     * Release the file actions, and the descriptors duplicated for {@link #inherit(List, int)}.
+     * Call this once the child has been spawned.
+     */
+    void destroy()
+    {
+        posix.posix_spawn_file_actions_destroy(pointer);
+        for (Integer fd : temporaries) {
+            posix.close(fd);
+        }
+        temporaries.clear();
+    }
+
+    private void check(int rs)
+    {
+        if (rs != 0) {
+            throw new RuntimeException(posix.strerror(rs));
+        }
+    }
+}
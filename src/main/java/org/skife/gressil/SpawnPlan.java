@@ -0,0 +1,106 @@
+package org.skife.gressil;
+
+import jnr.ffi.Pointer;
+import jnr.ffi.byref.IntByReference;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Everything about a spawn which is the same from one child to the next, worked out and
+ * encoded into native memory once: the argv, and the environment inherited from us. Spawning
+ * from a plan only encodes the handful of variables which differ per child.
+ * <p/>
+ * Plans are immutable, and safe to spawn from on several threads at once.
+ */
+final class SpawnPlan
+{
+    private final NativeStrings argv;
+    private final String[]      envNames;
+    private final NativeStrings env;
+
+    SpawnPlan(List<String> argv)
+    {
+        this(argv, inheritedEnv());
+    }
+
+    /**
+     * A plan with exactly <code>env</code> (NAME=value) as the environment, rather than ours
+     */
+    SpawnPlan(List<String> argv, List<String> env)
+    {
+        this.argv = new NativeStrings(argv);
+        this.envNames = new String[env.size()];
+        for (int i = 0; i < envNames.length; i++) {
+            envNames[i] = nameOf(env.get(i));
+        }
+        this.env = new NativeStrings(env);
+    }
+
+    private SpawnPlan(List<String> argv, SpawnPlan previous)
+    {
+        this.argv = new NativeStrings(argv);
+        this.envNames = previous.envNames;
+        this.env = previous.env;
+    }
+
+    /**
+     * The same environment, with a different argv
+     */
+    SpawnPlan withArgv(List<String> argv)
+    {
+        return new SpawnPlan(argv, this);
+    }
+
+    /**
+     * posix_spawnp a child from this plan, with <code>envOverrides</code> (NAME=value) added to
+     * the environment, replacing any inherited variables of the same name.
+     *
+     * @return zero, or the error number
+     */
+    int spawn(MicroC posix, IntByReference pid, Pointer fileActions, Pointer attributes, List<String> envOverrides)
+    {
+        Set<String> replaced = new HashSet<String>();
+        for (String override : envOverrides) {
+            replaced.add(nameOf(override));
+        }
+        boolean[] include = new boolean[envNames.length];
+        for (int i = 0; i < envNames.length; i++) {
+            include[i] = !replaced.contains(envNames[i]);
+        }
+
+        NativeStrings envp = env.concat(include, new NativeStrings(envOverrides));
+        int rs;
+        Lock lock = Fcntl.spawnLock();
+        lock.lock();
+        try {
+            rs = posix.posix_spawnp(pid, argv.getString(0), fileActions, attributes, argv.getPointer(), envp.getPointer());
+        }
+        finally {
+            lock.unlock();
+        }
+        // the call only saw raw pointers into argv's and envp's native memory, which is freed
+        // once they are collected, so both must stay reachable until it has returned
+        synchronized (argv) {
+            synchronized (envp) {
+                return rs;
+            }
+        }
+    }
+
+    private static List<String> inheritedEnv()
+    {
+        return new ArrayList<String>(asList(Daemon.getEnv()));
+    }
+
+    private static String nameOf(String pair)
+    {
+        int eq = pair.indexOf('=');
+        return eq < 0 ? pair : pair.substring(0, eq);
+    }
+}
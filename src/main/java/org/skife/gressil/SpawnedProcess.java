@@ -0,0 +1,211 @@
+package org.skife.gressil;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.byref.IntByReference;
+
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A process started by {@link Spawner#start()}. Its exit is noticed without a thread per process
+ * where pidfds are available, see {@link ProcessWatcher}, and it is reaped as soon as it exits.
+ */
+public class SpawnedProcess
+{
+    public interface ExitListener
+    {
+        void exited(SpawnedProcess process);
+    }
+
+    private static final int SIGTERM = 15;
+    private static final int SIGKILL = 9;
+
+    private final MicroC              posix;
+    private final int                 pid;
+    private final WritableByteChannel stdin;
+    private final ReadableByteChannel stdout;
+    private final ReadableByteChannel stderr;
+
+    private final CountDownLatch     exited    = new CountDownLatch(1);
+    private final List<ExitListener> listeners = new ArrayList<ExitListener>();
+
+    private boolean reaped   = false;
+    private int     exitCode = -1;
+
+    SpawnedProcess(MicroC posix, int pid, WritableByteChannel stdin, ReadableByteChannel stdout, ReadableByteChannel stderr)
+    {
+        this.posix = posix;
+        this.pid = pid;
+        this.stdin = stdin;
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    public int getPid()
+    {
+        return pid;
+    }
+
+    /**
+     * The process's stdin, or null if it was not piped
+     */
+    public WritableByteChannel getStdin()
+    {
+        return stdin;
+    }
+
+    /**
+     * The process's stdout, or null if it was not piped
+     */
+    public ReadableByteChannel getStdout()
+    {
+        return stdout;
+    }
+
+    /**
+     * The process's stderr, or null if it was not piped
+     */
+    public ReadableByteChannel getStderr()
+    {
+        return stderr;
+    }
+
+    /**
+     * Call <code>listener</code> once the process exits, on the thread which noticed, so it
+     * should not block. If it has already exited the listener is called before this returns.
+     */
+    public void onExit(ExitListener listener)
+    {
+        synchronized (this) {
+            if (!reaped) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.exited(this);
+    }
+
+    public int waitFor() throws InterruptedException
+    {
+        exited.await();
+        return exitValue();
+    }
+
+    /**
+     * @return true if the process exited, false if the timeout passed first
+     */
+    public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return exited.await(timeout, unit);
+    }
+
+    public synchronized boolean isAlive()
+    {
+        return !reaped;
+    }
+
+    /**
+     * The exit code, or 128 + signal number if the process was killed by a signal
+     *
+     * @throws IllegalThreadStateException if it has not exited yet
+     */
+    public synchronized int exitValue()
+    {
+        if (!reaped) {
+            throw new IllegalThreadStateException("process " + pid + " has not exited");
+        }
+        return exitCode;
+    }
+
+    /**
+     * Send SIGTERM, unless the process has already exited
+     */
+    public void destroy()
+    {
+        signal(SIGTERM);
+    }
+
+    /**
+     * Send SIGKILL, unless the process has already exited
+     */
+    public void destroyForcibly()
+    {
+        signal(SIGKILL);
+    }
+
+    private synchronized void signal(int signal)
+    {
+        // the pid cannot be reused before we reap it, and we only reap with this lock held
+        if (!reaped) {
+            posix.kill(pid, signal);
+        }
+    }
+
+    /**
+     * Start watching for the process to exit
+     */
+    void watch(ProcessWatcher watcher)
+    {
+        if (watcher.usesPidfds()) {
+            watcher.watch(pid, new ProcessWatcher.ExitListener()
+            {
+                @Override
+                public void exited(int pid)
+                {
+                    reap();
+                }
+            });
+            return;
+        }
+
+        // the probe cannot see our own children exit until they are reaped, so wait on them,
+        // leaving the actual reaping to be done with the lock held
+        Thread reaper = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Pointer info = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), WaitStatus.SIZEOF_SIGINFO);
+                int rs;
+                do {
+                    rs = posix.waitid(WaitStatus.P_PID, pid, info, WaitStatus.WEXITED | WaitStatus.WNOWAIT);
+                }
+                while (rs < 0 && Fcntl.errno() == Fcntl.EINTR);
+                reap();
+            }
+        }, "gressil-reaper-" + pid);
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private void reap()
+    {
+        List<ExitListener> waiting;
+        synchronized (this) {
+            IntByReference status = new IntByReference();
+            int rs;
+            do {
+                rs = posix.waitpid(pid, status, 0);
+            }
+            while (rs < 0 && Fcntl.errno() == Fcntl.EINTR);
+            exitCode = rs == pid ? WaitStatus.exitCode(status.getValue()) : -1;
+            reaped = true;
+            waiting = new ArrayList<ExitListener>(listeners);
+            listeners.clear();
+        }
+        exited.countDown();
+        for (ExitListener listener : waiting) {
+            try {
+                listener.exited(this);
+            }
+            catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+import jnr.ffi.byref.IntByReference;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Launches arbitrary commands with posix_spawnp, for when {@link ProcessBuilder} is too slow.
+ * posix_spawnp uses vfork or clone(CLONE_VM) under the hood, so nothing is copied and the cost
+ * of a spawn does not grow with the size of the heap. The argv and environment are encoded
+ * into native memory on the first start and reused after that.
+ * <pre>
+ * SpawnedProcess process = new Spawner("gzip", "-c")
+ *     .withDirectory(new File("/var/tmp"))
+ *     .start();
+ * </pre>
+ * Like a {@link Daemon}, a Spawner is immutable, and safe to start from on several threads.
+ * Children start with default signal dispositions and no signals blocked, and in our session.
+ */
+public class Spawner
+{
+    public enum Redirect
+    {
+        /**
+         * A pipe to us, see {@link SpawnedProcess#getStdin()} and friends
+         */
+        PIPE,
+
+        /**
+         * Share ours
+         */
+        INHERIT,
+
+        /**
+         * /dev/null
+         */
+        DISCARD
+    }
+
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    private static final File DEV_NULL = new File("/dev/null");
+
+    private final List<String> command;
+    private final List<String> environment;
+    private final File         directory;
+    private final Redirect[]   redirects;
+
+    // worked out on first start, Spawner is otherwise immutable
+    private volatile SpawnPlan plan;
+
+    public Spawner(String... command)
+    {
+        this(asList(command));
+    }
+
+    public Spawner(List<String> command)
+    {
+        this(new ArrayList<String>(command), null, null, new Redirect[]{Redirect.PIPE, Redirect.PIPE, Redirect.PIPE});
+    }
+
+    private Spawner(List<String> command, List<String> environment, File directory, Redirect[] redirects)
+    {
+        if (command.isEmpty()) {
+            throw new IllegalArgumentException("no command given");
+        }
+        this.command = command;
+        this.environment = environment;
+        this.directory = directory;
+        this.redirects = redirects;
+    }
+
+    /**
+     * Give the child exactly <code>environment</code>. By default it gets ours, less anything
+     * Gressil set in it.
+     */
+    public Spawner withEnvironment(Map<String, String> environment)
+    {
+        List<String> env = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : environment.entrySet()) {
+            env.add(entry.getKey() + "=" + entry.getValue());
+        }
+        return new Spawner(command, env, directory, redirects);
+    }
+
+    /**
+     * Start the child in <code>directory</code>, rather than our working directory. Needs
+     * glibc 2.29 or Mac OS X 10.15.
+     */
+    public Spawner withDirectory(File directory)
+    {
+        return new Spawner(command, environment, directory, redirects);
+    }
+
+    public Spawner withStdin(Redirect redirect)
+    {
+        return new Spawner(command, environment, directory, new Redirect[]{redirect, redirects[1], redirects[2]});
+    }
+
+    public Spawner withStdout(Redirect redirect)
+    {
+        return new Spawner(command, environment, directory, new Redirect[]{redirects[0], redirect, redirects[2]});
+    }
+
+    public Spawner withStderr(Redirect redirect)
+    {
+        return new Spawner(command, environment, directory, new Redirect[]{redirects[0], redirects[1], redirect});
+    }
+
+    /**
+     * Spawn the command
+     *
+     * @throws IOException if it could not be spawned, such as when it is not found
+     */
+    public SpawnedProcess start() throws IOException
+    {
+        SpawnPlan plan = plan();
+        ProcessWatcher watcher = ProcessWatcher.shared();
+
+        // for each of stdin, stdout and stderr, the end of its pipe we keep and the end the child gets
+        int[] ours = {-1, -1, -1};
+        int[] theirs = {-1, -1, -1};
+        IntByReference pid = new IntByReference();
+        int rs;
+        try {
+            for (int fd = 0; fd < 3; fd++) {
+                if (redirects[fd] == Redirect.PIPE) {
+                    int[] pipe = Fcntl.pipe(posix);
+                    ours[fd] = fd == 0 ? pipe[1] : pipe[0];
+                    theirs[fd] = fd == 0 ? pipe[0] : pipe[1];
+                }
+            }
+
+            SpawnFileActions fileActions = new SpawnFileActions(posix);
+            SpawnAttributes attributes = new SpawnAttributes(posix, false);
+            try {
+                for (int fd = 0; fd < 3; fd++) {
+                    if (redirects[fd] == Redirect.PIPE) {
+                        fileActions.inherit(Collections.singletonList(theirs[fd]), fd);
+                    }
+                    else if (redirects[fd] == Redirect.DISCARD) {
+                        fileActions.open(fd, DEV_NULL, fd == 0 ? Fcntl.O_RDONLY : Fcntl.O_WRONLY, 0);
+                    }
+                }
+                if (directory != null) {
+                    fileActions.chdir(directory);
+                }
+                rs = plan.spawn(posix, pid, fileActions.getPointer(), attributes.getPointer(), Collections.<String>emptyList());
+            }
+            finally {
+                fileActions.destroy();
+                attributes.destroy();
+            }
+        }
+        catch (IOException e) {
+            close(ours);
+            throw e;
+        }
+        catch (RuntimeException e) {
+            close(ours);
+            throw e;
+        }
+        finally {
+            close(theirs);
+        }
+
+        if (rs != 0) {
+            close(ours);
+            throw new IOException(command.get(0) + ": " + posix.strerror(rs));
+        }
+
+        SpawnedProcess process = new SpawnedProcess(posix, pid.getValue(),
+                                                    ours[0] < 0 ? null : new PipeChannel(posix, ours[0]),
+                                                    ours[1] < 0 ? null : new PipeChannel(posix, ours[1]),
+                                                    ours[2] < 0 ? null : new PipeChannel(posix, ours[2]));
+        process.watch(watcher);
+        return process;
+    }
+
+    private SpawnPlan plan()
+    {
+        SpawnPlan current = plan;
+        if (current == null) {
+            current = environment == null ? new SpawnPlan(command) : new SpawnPlan(command, environment);
+            plan = current;
+        }
+        return current;
+    }
+
+    private static void close(int[] fds)
+    {
+        for (int fd : fds) {
+            if (fd >= 0) {
+                posix.close(fd);
+            }
+        }
+    }
+}
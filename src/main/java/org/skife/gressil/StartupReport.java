@@ -0,0 +1,184 @@
+package org.skife.gressil;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When each phase of starting a daemon finished, for working out where startup time goes.
+ * Timestamps are wall clock milliseconds, so that those taken in the parent and in the child
+ * can be compared.
+ * <p/>
+ * The parent's report, from {@link Status#getStartupReport()}, covers its own phases, and the
+ * child's phases as well once the child is ready, as the child sends them along with its
+ * readiness. The child's report, from {@link Daemon#getStartupReport()}, covers the child's
+ * phases and when the parent asked for the spawn.
+ */
+public final class StartupReport
+{
+    static final String ENV_NAME = Daemon.class.getName() + ".spawn_requested_at";
+
+    public enum Phase
+    {
+        /**
+         * The parent started to spawn the child
+         */
+        SPAWN_REQUESTED,
+
+        /**
+         * The parent worked out the child's command line
+         */
+        ARGV_BUILT,
+
+        /**
+         * The parent worked out the child's environment and descriptors
+         */
+        ENV_BUILT,
+
+        /**
+         * posix_spawnp returned in the parent
+         */
+        SPAWNED,
+
+        /**
+         * The child's JVM started, per its RuntimeMXBean
+         */
+        JVM_STARTED,
+
+        /**
+         * The child's main reached {@link Daemon#daemonize()}
+         */
+        DAEMON_ENTERED,
+
+        /**
+         * The child set up its output buffering and rotation, if any
+         */
+        STREAMS_REDIRECTED,
+
+        /**
+         * The child wrote its pidfile, if it has one
+         */
+        PIDFILE_WRITTEN,
+
+        /**
+         * The child called {@link Daemon#notifyReady()}
+         */
+        READY
+    }
+
+    private final Map<Phase, Long> timestamps = new EnumMap<Phase, Long>(Phase.class);
+
+    StartupReport()
+    {
+    }
+
+    synchronized void mark(Phase phase)
+    {
+        mark(phase, System.currentTimeMillis());
+    }
+
+    synchronized void mark(Phase phase, long millis)
+    {
+        timestamps.put(phase, millis);
+    }
+
+    /**
+     * @return when <code>phase</code> finished, in milliseconds since the epoch, or -1 if it was
+     *         not recorded
+     */
+    public synchronized long getTimestamp(Phase phase)
+    {
+        Long millis = timestamps.get(phase);
+        return millis == null ? -1 : millis;
+    }
+
+    /**
+     * @return the time from the end of <code>from</code> to the end of <code>to</code>, or -1 if
+     *         either was not recorded
+     */
+    public long getElapsed(Phase from, Phase to, TimeUnit unit)
+    {
+        long start = getTimestamp(from);
+        long end = getTimestamp(to);
+        if (start < 0 || end < 0) {
+            return -1;
+        }
+        return unit.convert(end - start, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Every recorded phase, in the order they happen
+     */
+    public synchronized Map<Phase, Long> getTimestamps()
+    {
+        return Collections.unmodifiableMap(new EnumMap<Phase, Long>(timestamps));
+    }
+
+    synchronized StartupReport copy()
+    {
+        StartupReport copy = new StartupReport();
+        copy.timestamps.putAll(timestamps);
+        return copy;
+    }
+
+    /**
+     * The phases recorded in this process from <code>first</code> on, as PHASE=millis pairs
+     * separated by commas, for sending to the other side
+     */
+    synchronized String encode(Phase first)
+    {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<Phase, Long> entry : timestamps.entrySet()) {
+            if (entry.getKey().compareTo(first) >= 0) {
+                if (out.length() > 0) {
+                    out.append(',');
+                }
+                out.append(entry.getKey()).append('=').append(entry.getValue());
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Record the phases in <code>encoded</code>, skipping anything we do not understand
+     */
+    synchronized void decode(String encoded)
+    {
+        for (String pair : encoded.trim().split(",")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            try {
+                timestamps.put(Phase.valueOf(pair.substring(0, eq)), Long.parseLong(pair.substring(eq + 1)));
+            }
+            catch (IllegalArgumentException e) {
+                // a phase from a newer version, or garbage
+            }
+        }
+    }
+
+    /**
+     * Each recorded phase with the time it took since the one before, and the total, such as
+     * <code>ARGV_BUILT=2ms ENV_BUILT=1ms ... total=412ms</code>
+     */
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder out = new StringBuilder();
+        long first = -1;
+        long previous = -1;
+        for (Map.Entry<Phase, Long> entry : timestamps.entrySet()) {
+            long millis = entry.getValue();
+            if (previous < 0) {
+                first = millis;
+            }
+            else {
+                out.append(entry.getKey()).append('=').append(millis - previous).append("ms ");
+            }
+            previous = millis;
+        }
+        return out.append("total=").append(previous - first).append("ms").toString();
+    }
+}
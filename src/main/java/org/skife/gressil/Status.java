@@ -2,14 +2,50 @@ package org.skife.gressil;
 
 public final class Status
 {
+    /**
+     * What the parent learned about the child becoming ready, see
+     * {@link Daemon#withReadinessTimeout(long, java.util.concurrent.TimeUnit)}
+     */
+    public enum Readiness
+    {
+        /**
+         * Readiness was not asked for (or this is the child)
+         */
+        UNKNOWN,
+
+        /**
+         * The child called {@link Daemon#notifyReady()}
+         */
+        READY,
+
+        /**
+         * The child exited, or closed the readiness pipe, before becoming ready
+         */
+        FAILED,
+
+        /**
+         * The child is still running but did not become ready in time
+         */
+        TIMED_OUT
+    }
+
     private final boolean child;
 
     private final int childPid;
 
-    private Status(boolean child, int pid)
+    private final Readiness readiness;
+
+    private final int exitCode;
+
+    private final StartupReport startupReport;
+
+    private Status(boolean child, int pid, Readiness readiness, int exitCode, StartupReport startupReport)
     {
         this.child = child;
         childPid = pid;
+        this.readiness = readiness;
+        this.exitCode = exitCode;
+        this.startupReport = startupReport;
     }
 
     public int getChildPid()
@@ -27,6 +63,38 @@ public final class Status
         return !child;
     }
 
+    public Readiness getReadiness()
+    {
+        return readiness;
+    }
+
+    public boolean isReady()
+    {
+        return readiness == Readiness.READY;
+    }
+
+    /**
+     * The exit code of a child which failed before becoming ready, 128 + signal number if it
+     * was killed by a signal, or -1 if it is not known.
+     */
+    public int getExitCode()
+    {
+        return exitCode;
+    }
+
+    /**
+     * When each phase of the spawn finished, as far as it got. Not considered by
+     * {@link #equals(Object)}.
+     */
+    public StartupReport getStartupReport()
+    {
+        return startupReport;
+    }
+
+    Status withStartupReport(StartupReport report)
+    {
+        return new Status(child, childPid, readiness, exitCode, report);
+    }
 
     @Override
     public boolean equals(Object o)
@@ -36,7 +104,10 @@ public final class Status
 
         Status status = (Status) o;
 
-        return child == status.child && childPid == status.childPid;
+        return child == status.child
+               && childPid == status.childPid
+               && readiness == status.readiness
+               && exitCode == status.exitCode;
 
     }
 
@@ -45,16 +116,33 @@ public final class Status
     {
         int result = (child ? 1 : 0);
         result = 31 * result + childPid;
+        result = 31 * result + readiness.hashCode();
+        result = 31 * result + exitCode;
         return result;
     }
 
     static Status child(int pid)
     {
-        return new Status(true, pid);
+        return new Status(true, pid, Readiness.UNKNOWN, -1, new StartupReport());
     }
 
     static Status parent(int pid)
     {
-        return new Status(false, pid);
+        return new Status(false, pid, Readiness.UNKNOWN, -1, new StartupReport());
+    }
+
+    static Status ready(int pid)
+    {
+        return new Status(false, pid, Readiness.READY, -1, new StartupReport());
+    }
+
+    static Status failed(int pid, int exitCode)
+    {
+        return new Status(false, pid, Readiness.FAILED, exitCode, new StartupReport());
+    }
+
+    static Status timedOut(int pid)
+    {
+        return new Status(false, pid, Readiness.TIMED_OUT, -1, new StartupReport());
     }
 }
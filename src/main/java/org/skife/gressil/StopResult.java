@@ -0,0 +1,40 @@
+package org.skife.gressil;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of {@link Daemon#stop(long, TimeUnit)}: how far the stop had to escalate, and how
+ * long it took.
+ */
+public final class StopResult
+{
+    private final DaemonStatus status;
+    private final long         elapsedNanos;
+
+    StopResult(DaemonStatus status, long elapsedNanos)
+    {
+        this.status = status;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * {@link DaemonStatus#STOP_SUCCESS} if the daemon exited on SIGTERM within the drain timeout,
+     * {@link DaemonStatus#STOP_KILLED} if it had to be sent SIGKILL, {@link DaemonStatus#STOP_TIMED_OUT}
+     * if it was still running even after that, and otherwise as for {@link Daemon#stop()}.
+     */
+    public DaemonStatus getStatus()
+    {
+        return status;
+    }
+
+    public long getElapsed(TimeUnit unit)
+    {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString()
+    {
+        return status + " in " + getElapsed(TimeUnit.MILLISECONDS) + "ms";
+    }
+}
@@ -0,0 +1,368 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.byref.IntByReference;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spawns a daemon and stays resident to watch it, restarting it when it exits. Restarts back off
+ * exponentially while the daemon keeps dying quickly, and if it dies too many times within the
+ * crash loop window the supervisor gives up on it.
+ * <p/>
+ * If the daemon has a watchdog, see {@link Daemon#withWatchdog(long, TimeUnit)}, the supervisor
+ * also restarts it when it stalls. It is sent SIGQUIT, so the JVM dumps its threads to its
+ * stdout, given a couple of seconds, then killed, and restarted as if it had died.
+ * <p/>
+ * Like {@link Daemon#daemonize()}, the same code runs in both processes:
+ * <pre>
+ * Status status = new Supervisor(new Daemon().withMainArgs(args)).start();
+ * if (status.isParent()) {
+ *     // we are the supervisor, the daemon is running
+ * }
+ * </pre>
+ * The supervisor itself is not daemonized, it is meant to be run by whatever runs foreground
+ * processes on the host.
+ */
+public class Supervisor
+{
+    private static final int SIGTERM = 15;
+    private static final int SIGKILL = 9;
+
+    // time for a stalled daemon to dump its threads before it is killed
+    private static final long DUMP_GRACE_MILLIS = 2000;
+
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    private final Daemon daemon;
+    private final long   initialBackoffMillis;
+    private final long   maxBackoffMillis;
+    private final int    crashLoopRestarts;
+    private final long   crashLoopWindowMillis;
+
+    private final AtomicInteger restarts = new AtomicInteger();
+    private final AtomicInteger stalls   = new AtomicInteger();
+
+    // the daemon the watchdog may signal, which is -1 once it has been reaped and its pid may be reused
+    private final Object watchLock    = new Object();
+    private volatile int  watchedPid   = -1;
+    private volatile long watchedSince = 0;
+
+    private volatile int     childPid     = -1;
+    private volatile int     lastExitCode = -1;
+    private volatile boolean crashLooping = false;
+    private volatile boolean stopping     = false;
+    private volatile Thread  monitor;
+
+    /**
+     * Supervise <code>daemon</code>, backing off from one second up to a minute between restarts,
+     * and giving up after five restarts within a minute.
+     */
+    public Supervisor(Daemon daemon)
+    {
+        this(daemon, 1000, 60 * 1000, 5, 60 * 1000);
+    }
+
+    private Supervisor(Daemon daemon,
+                       long initialBackoffMillis,
+                       long maxBackoffMillis,
+                       int crashLoopRestarts,
+                       long crashLoopWindowMillis)
+    {
+        this.daemon = daemon;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.crashLoopRestarts = crashLoopRestarts;
+        this.crashLoopWindowMillis = crashLoopWindowMillis;
+    }
+
+    /**
+     * Wait <code>initial</code> before the first restart, doubling for each further restart of a
+     * daemon which keeps dying within the crash loop window, up to <code>max</code>.
+     */
+    public Supervisor withBackoff(long initial, long max, TimeUnit unit)
+    {
+        return new Supervisor(daemon, unit.toMillis(initial), unit.toMillis(max),
+                              crashLoopRestarts, crashLoopWindowMillis);
+    }
+
+    /**
+     * Give up if the daemon has to be restarted more than <code>restarts</code> times within
+     * <code>window</code>.
+     */
+    public Supervisor withCrashLoopLimit(int restarts, long window, TimeUnit unit)
+    {
+        return new Supervisor(daemon, initialBackoffMillis, maxBackoffMillis,
+                              restarts, unit.toMillis(window));
+    }
+
+    /**
+     * In the parent, spawn the daemon and start supervising it on a background thread. In the
+     * child this behaves as {@link Daemon#forkish()}.
+     *
+     * @return the status of the initial spawn
+     */
+    public synchronized Status start() throws IOException
+    {
+        if (Daemon.isDaemon()) {
+            return daemon.forkish();
+        }
+        if (monitor != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        final Status first = daemon.spawnUnlessRunning();
+        childPid = first.getChildPid();
+
+        monitor = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                supervise(first);
+            }
+        }, "gressil-supervisor");
+        monitor.start();
+
+        if (daemon.getWatchdogTimeoutMillis() > 0) {
+            Thread watchdog = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    watchdog(daemon.getWatchdogTimeoutMillis());
+                }
+            }, "gressil-watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+        return first;
+    }
+
+    /**
+     * Stop supervising, and send the daemon SIGTERM
+     */
+    public void stop()
+    {
+        stopping = true;
+        // once reaped, during a backoff or after giving up, the pid may be someone else's
+        signal(watchedPid, SIGTERM);
+        Thread t = monitor;
+        if (t != null) {
+            // wake it if it is backing off
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Wait until the supervisor stops, because of {@link #stop()} or a crash loop
+     */
+    public void awaitTermination() throws InterruptedException
+    {
+        Thread t = monitor;
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    /**
+     * The number of times the daemon has been restarted
+     */
+    public int getRestartCount()
+    {
+        return restarts.get();
+    }
+
+    /**
+     * The exit code the daemon last exited with, 128 + signal number if it was killed by a
+     * signal, or -1 if it has not exited yet
+     */
+    public int getLastExitCode()
+    {
+        return lastExitCode;
+    }
+
+    /**
+     * The pid of the current daemon, or of the last one if the supervisor has stopped
+     */
+    public int getChildPid()
+    {
+        return childPid;
+    }
+
+    /**
+     * The number of times the daemon has been killed for stalling
+     */
+    public int getStallCount()
+    {
+        return stalls.get();
+    }
+
+    /**
+     * True if the supervisor gave up on the daemon because it was restarted too often
+     */
+    public boolean isCrashLooping()
+    {
+        return crashLooping;
+    }
+
+    private void supervise(Status status)
+    {
+        Deque<Long> recent_restarts = new ArrayDeque<Long>();
+        long backoff = initialBackoffMillis;
+
+        while (true) {
+            long started = System.currentTimeMillis();
+            childPid = status.getChildPid();
+            if (status.getReadiness() == Status.Readiness.FAILED
+                && (status.getChildPid() <= 0 || status.getExitCode() >= 0)) {
+                // never spawned, or already reaped while waiting for it to become ready. Without
+                // an exit code it closed its ready pipe but may not have exited, so wait for it
+                lastExitCode = status.getExitCode();
+            }
+            else {
+                watchedSince = started;
+                watchedPid = status.getChildPid();
+                if (stopping) {
+                    // stopped while this one was being spawned, after stop() looked for a daemon to signal
+                    signal(status.getChildPid(), SIGTERM);
+                }
+                lastExitCode = waitFor(status.getChildPid());
+            }
+
+            if (stopping) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - started > crashLoopWindowMillis) {
+                // it ran for a good while, this is not part of a crash loop
+                backoff = initialBackoffMillis;
+                recent_restarts.clear();
+            }
+            while (!recent_restarts.isEmpty() && now - recent_restarts.peekFirst() > crashLoopWindowMillis) {
+                recent_restarts.removeFirst();
+            }
+            if (recent_restarts.size() >= crashLoopRestarts) {
+                System.err.printf("daemon restarted %d times in %dms, giving up\n",
+                                  recent_restarts.size(), crashLoopWindowMillis);
+                crashLooping = true;
+                return;
+            }
+
+            try {
+                Thread.sleep(backoff);
+            }
+            catch (InterruptedException e) {
+                if (stopping) {
+                    return;
+                }
+            }
+            backoff = Math.min(backoff * 2, maxBackoffMillis);
+
+            recent_restarts.addLast(System.currentTimeMillis());
+            restarts.incrementAndGet();
+            try {
+                status = daemon.spawnUnlessRunning();
+            }
+            catch (Exception e) {
+                System.err.println(e.getMessage());
+                status = Status.failed(-1, -1);
+            }
+        }
+    }
+
+    private int waitFor(int pid)
+    {
+        if (pid <= 0) {
+            return -1;
+        }
+
+        // wait without reaping, so the watchdog never signals a pid which has been reused
+        Pointer info = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), WaitStatus.SIZEOF_SIGINFO);
+        int rs;
+        do {
+            rs = posix.waitid(WaitStatus.P_PID, pid, info, WaitStatus.WEXITED | WaitStatus.WNOWAIT);
+        }
+        while (rs < 0 && Fcntl.errno() == Fcntl.EINTR);
+
+        synchronized (watchLock) {
+            watchedPid = -1;
+            IntByReference status = new IntByReference();
+            while (true) {
+                rs = posix.waitpid(pid, status, 0);
+                if (rs == pid) {
+                    return WaitStatus.exitCode(status.getValue());
+                }
+                if (rs < 0 && Fcntl.errno() != Fcntl.EINTR) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Poll the daemon's heartbeat, killing it once it is older than <code>timeoutMillis</code>,
+     * for as long as we are supervising. Until the daemon has published a heartbeat of its own,
+     * its age is counted from when it was spawned, so a daemon which hangs starting up is caught too.
+     */
+    private void watchdog(long timeoutMillis)
+    {
+        long poll = Math.max(100, Math.min(1000, timeoutMillis / 4));
+        Thread supervisor = monitor;
+        int killed = -1;
+        while (supervisor.isAlive() && !stopping) {
+            try {
+                Thread.sleep(poll);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            int pid = watchedPid;
+            if (pid <= 0 || pid == killed) {
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            long age = now - watchedSince;
+            try {
+                DaemonMetrics.Snapshot snapshot = daemon.readMetrics();
+                if (snapshot.getPid() == pid) {
+                    age = Watchdog.heartbeatAge(snapshot, pid, now);
+                }
+            }
+            catch (IOException e) {
+                // not published yet
+            }
+
+            if (age > timeoutMillis && signal(pid, DaemonSignal.QUIT.getNumber())) {
+                System.err.printf("daemon %d stalled, no heartbeat for %dms, dumping threads and restarting\n", pid, age);
+                stalls.incrementAndGet();
+                try {
+                    Thread.sleep(DUMP_GRACE_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    // kill it anyway
+                }
+                signal(pid, SIGKILL);
+                killed = pid;
+            }
+        }
+    }
+
+    /**
+     * Signal the daemon, if it is still <code>pid</code> and has not been reaped
+     */
+    private boolean signal(int pid, int signal)
+    {
+        synchronized (watchLock) {
+            return pid > 0 && watchedPid == pid && posix.kill(pid, signal) == 0;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package org.skife.gressil;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Platform;
+import jnr.ffi.Pointer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Just enough of AF_UNIX stream sockets for the control socket, as Java has none of its own
+ * before 16.
+ */
+final class UnixSocket
+{
+    private static final boolean DARWIN = Platform.getNativePlatform().getOS() == Platform.OS.DARWIN;
+
+    private static final int AF_UNIX     = 1;
+    private static final int SOCK_STREAM = 1;
+    // linux only, darwin has neither this nor accept4
+    private static final int SOCK_CLOEXEC = 02000000;
+    private static final int SOL_SOCKET  = DARWIN ? 0xffff : 1;
+    private static final int SO_RCVTIMEO = DARWIN ? 0x1006 : 20;
+    private static final int SO_SNDTIMEO = DARWIN ? 0x1005 : 21;
+
+    // struct sockaddr_un, the path starts at 2 on both, after a short family on linux and a
+    // length and family byte on darwin
+    private static final int SIZEOF_SOCKADDR_UN = DARWIN ? 106 : 110;
+    private static final int MAX_PATH           = SIZEOF_SOCKADDR_UN - 2 - 1;
+
+    private UnixSocket()
+    {
+    }
+
+    /**
+     * A listening socket bound to <code>path</code>, which only we can connect to. Anything
+     * already at <code>path</code> is replaced.
+     */
+    static int listen(MicroC posix, File path) throws IOException
+    {
+        address(path);
+
+        // bound inside a directory only we can enter, and only moved into place once its own
+        // permissions are set, so nobody else can connect in between
+        File dir = Files.createTempDirectory(path.getAbsoluteFile().getParentFile().toPath(), null).toFile();
+        File bound = new File(dir, "s");
+        try {
+            Pointer addr = address(bound);
+            int fd = open(posix);
+            if (posix.bind(fd, addr, SIZEOF_SOCKADDR_UN) != 0 || posix.listen(fd, 16) != 0) {
+                int errno = Fcntl.errno();
+                posix.close(fd);
+                throw new IOException(String.format("unable to listen on %s: %s", path, posix.strerror(errno)));
+            }
+            try {
+                Files.setPosixFilePermissions(bound.toPath(), EnumSet.of(PosixFilePermission.OWNER_READ,
+                                                                         PosixFilePermission.OWNER_WRITE));
+                Files.move(bound.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException e) {
+                posix.close(fd);
+                throw e;
+            }
+            if (DARWIN) {
+                // see accept
+                posix.fcntl(fd, Fcntl.F_SETFL, posix.fcntl(fd, Fcntl.F_GETFL, 0) | Fcntl.O_NONBLOCK);
+            }
+            return fd;
+        }
+        finally {
+            bound.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Wait for a connection to <code>listener</code>, and accept it already marked
+     * close-on-exec
+     *
+     * @return the connected socket, or -1 with errno set
+     */
+    static int accept(MicroC posix, int listener)
+    {
+        if (!DARWIN) {
+            return posix.accept4(listener, null, null, SOCK_CLOEXEC);
+        }
+
+        // without accept4 the socket is accepted and marked while holding off spawns. That
+        // must not block, so the listener is non-blocking and we wait for a connection first
+        Pointer pollfd = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), Fcntl.SIZEOF_POLLFD);
+        pollfd.putInt(0, listener);
+        pollfd.putShort(4, Fcntl.POLLIN);
+        while (true) {
+            pollfd.putShort(6, (short) 0);
+            if (posix.poll(pollfd, 1, -1) < 0) {
+                return -1;
+            }
+            int fd;
+            int errno;
+            Lock lock = Fcntl.markingLock();
+            lock.lock();
+            try {
+                fd = posix.accept(listener, null, null);
+                errno = Fcntl.errno();
+                if (fd >= 0) {
+                    posix.fcntl(fd, Fcntl.F_SETFD, Fcntl.FD_CLOEXEC);
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            if (fd >= 0) {
+                // accepted sockets inherit O_NONBLOCK from the listener on darwin
+                posix.fcntl(fd, Fcntl.F_SETFL, posix.fcntl(fd, Fcntl.F_GETFL, 0) & ~Fcntl.O_NONBLOCK);
+                return fd;
+            }
+            if (errno != Fcntl.EAGAIN) {
+                return -1;
+            }
+            // the connection went away before we got to it
+        }
+    }
+
+    /**
+     * A socket connected to <code>path</code>
+     */
+    static int connect(MicroC posix, File path) throws IOException
+    {
+        Pointer addr = address(path);
+        int fd = open(posix);
+        if (posix.connect(fd, addr, SIZEOF_SOCKADDR_UN) != 0) {
+            int errno = Fcntl.errno();
+            posix.close(fd);
+            throw new IOException(String.format("unable to connect to %s: %s", path, posix.strerror(errno)));
+        }
+        return fd;
+    }
+
+    /**
+     * Give up on reads and writes on <code>fd</code> which take longer than
+     * <code>millis</code>
+     */
+    static void setTimeout(MicroC posix, int fd, long millis)
+    {
+        // struct timeval, two longs on both
+        Pointer timeval = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), 16, true);
+        timeval.putLong(0, millis / 1000);
+        if (DARWIN) {
+            // suseconds_t is an int on darwin
+            timeval.putInt(8, (int) (millis % 1000) * 1000);
+        }
+        else {
+            timeval.putLong(8, (millis % 1000) * 1000);
+        }
+        posix.setsockopt(fd, SOL_SOCKET, SO_RCVTIMEO, timeval, 16);
+        posix.setsockopt(fd, SOL_SOCKET, SO_SNDTIMEO, timeval, 16);
+    }
+
+    /**
+     * Read up to and not including the first newline, or to end of stream
+     *
+     * @return null if the line is longer than <code>limit</code> bytes, or the read fails
+     */
+    static String readLine(MicroC posix, int fd, int limit)
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] b = new byte[1];
+        while (line.size() <= limit) {
+            int n = posix.read(fd, b, 1);
+            if (n < 0 && Fcntl.errno() == Fcntl.EINTR) {
+                continue;
+            }
+            if (n <= 0 || b[0] == '\n') {
+                return n < 0 ? null : new String(line.toByteArray(), StandardCharsets.UTF_8);
+            }
+            line.write(b[0]);
+        }
+        return null;
+    }
+
+    static byte[] readAll(MicroC posix, int fd) throws IOException
+    {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        while (true) {
+            int n = posix.read(fd, buf, buf.length);
+            if (n == 0) {
+                return all.toByteArray();
+            }
+            if (n < 0) {
+                if (Fcntl.errno() == Fcntl.EINTR) {
+                    continue;
+                }
+                throw new IOException(posix.strerror(Fcntl.errno()));
+            }
+            all.write(buf, 0, n);
+        }
+    }
+
+    static void writeAll(MicroC posix, int fd, byte[] bytes) throws IOException
+    {
+        int offset = 0;
+        while (offset < bytes.length) {
+            byte[] rest = offset == 0 ? bytes : Arrays.copyOfRange(bytes, offset, bytes.length);
+            int n = posix.write(fd, rest, rest.length);
+            if (n < 0) {
+                if (Fcntl.errno() == Fcntl.EINTR) {
+                    continue;
+                }
+                throw new IOException(posix.strerror(Fcntl.errno()));
+            }
+            offset += n;
+        }
+    }
+
+    private static int open(MicroC posix) throws IOException
+    {
+        int fd;
+        if (DARWIN) {
+            Lock lock = Fcntl.markingLock();
+            lock.lock();
+            try {
+                fd = posix.socket(AF_UNIX, SOCK_STREAM, 0);
+                if (fd >= 0) {
+                    posix.fcntl(fd, Fcntl.F_SETFD, Fcntl.FD_CLOEXEC);
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        else {
+            fd = posix.socket(AF_UNIX, SOCK_STREAM | SOCK_CLOEXEC, 0);
+        }
+        if (fd < 0) {
+            throw new IOException("unable to create socket: " + posix.strerror(Fcntl.errno()));
+        }
+        return fd;
+    }
+
+    private static Pointer address(File path) throws IOException
+    {
+        byte[] bytes = path.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_PATH) {
+            throw new IOException(String.format("socket path %s is longer than %d bytes", path, MAX_PATH));
+        }
+        Pointer addr = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), SIZEOF_SOCKADDR_UN, true);
+        if (DARWIN) {
+            addr.putByte(0, (byte) SIZEOF_SOCKADDR_UN);
+            addr.putByte(1, (byte) AF_UNIX);
+        }
+        else {
+            addr.putShort(0, (short) AF_UNIX);
+        }
+        addr.put(2, bytes, 0, bytes.length);
+        return addr;
+    }
+}
@@ -0,0 +1,42 @@
+package org.skife.gressil;
+
+import jnr.ffi.Platform;
+
+/**
+ * Decodes the status word filled in by waitpid(2). The encoding is the same on Linux and
+ * Mac OS X.
+ */
+final class WaitStatus
+{
+    static final int WNOHANG = 1;
+
+    private static final boolean DARWIN = Platform.getNativePlatform().getOS() == Platform.OS.DARWIN;
+
+    // for waitid(2), which is not encoded the same on both
+    static final int P_PID          = 1;
+    static final int WEXITED        = 4;
+    static final int WNOWAIT        = DARWIN ? 0x20 : 0x01000000;
+    static final int SIZEOF_SIGINFO = 128;
+    static final int SIGINFO_PID    = DARWIN ? 12 : 16;
+
+    private WaitStatus()
+    {
+    }
+
+    static boolean signaled(int status)
+    {
+        return (status & 0x7f) != 0 && (status & 0x7f) != 0x7f;
+    }
+
+    /**
+     * The exit code of the process, or 128 + signal number if it was killed by a signal,
+     * in the same way a shell reports it.
+     */
+    static int exitCode(int status)
+    {
+        if (signaled(status)) {
+            return 128 + (status & 0x7f);
+        }
+        return (status >> 8) & 0xff;
+    }
+}
@@ -0,0 +1,200 @@
+package org.skife.gressil;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Health checks which hold back a daemon's heartbeat, see {@link Daemon#withWatchdog(long, TimeUnit)}.
+ * The heartbeat is published to the daemon's metrics file by the thread publishing
+ * {@link DaemonMetrics}, which runs the checks first, and only moves the heartbeat on if they all
+ * pass. A JVM stopped in GC or at a safepoint publishes nothing at all, so either way the
+ * heartbeat goes stale and the daemon shows as {@link DaemonStatus#STATUS_STALLED}.
+ * <p/>
+ * With a watchdog there are two checks built in: <code>deadlock</code>, which fails while any
+ * threads are deadlocked, and <code>gc</code>, which fails while more than 90% of the time is
+ * going to garbage collection. Daemons add their own with {@link #register(String, Check)}, or
+ * have threads which should keep making progress report it with {@link #progress(String, long, TimeUnit)}:
+ * <pre>
+ * Watchdog.Progress progress = Watchdog.progress("consumer", 30, TimeUnit.SECONDS);
+ * while (running) {
+ *     consume(queue.take());
+ *     progress.beat();
+ * }
+ * </pre>
+ * Checks run one at a time on the publishing thread, so should be quick.
+ */
+public final class Watchdog
+{
+    public interface Check
+    {
+        /**
+         * @return false, or throw, if the daemon is not healthy
+         */
+        boolean isHealthy() throws Exception;
+    }
+
+    private static final double MAX_GC_FRACTION = 0.9;
+
+    private static final Map<String, Check> checks  = new ConcurrentHashMap<String, Check>();
+    private static final Set<String>        failing = new HashSet<String>();
+
+    private Watchdog()
+    {
+    }
+
+    /**
+     * Hold back the heartbeat while <code>check</code> fails, replacing any check of the same name
+     */
+    public static void register(String name, Check check)
+    {
+        checks.put(name, check);
+    }
+
+    public static void unregister(String name)
+    {
+        checks.remove(name);
+    }
+
+    /**
+     * A check which fails once <code>timeout</code> passes without {@link Progress#beat()}
+     * being called, starting from now
+     */
+    public static Progress progress(String name, long timeout, TimeUnit unit)
+    {
+        Progress progress = new Progress(unit.toNanos(timeout));
+        register(name, progress);
+        return progress;
+    }
+
+    /**
+     * Register the built in <code>deadlock</code> and <code>gc</code> checks
+     */
+    static void registerDefaultChecks()
+    {
+        register("deadlock", new Check()
+        {
+            private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+            @Override
+            public boolean isHealthy()
+            {
+                long[] deadlocked = threads.isSynchronizerUsageSupported()
+                                    ? threads.findDeadlockedThreads()
+                                    : threads.findMonitorDeadlockedThreads();
+                return deadlocked == null;
+            }
+        });
+        register("gc", new Check()
+        {
+            private long lastGcMillis = gcMillis();
+            private long lastNanos    = System.nanoTime();
+
+            @Override
+            public synchronized boolean isHealthy()
+            {
+                long gc = gcMillis();
+                long now = System.nanoTime();
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(now - lastNanos);
+                boolean healthy = elapsed <= 0 || (double) (gc - lastGcMillis) / elapsed <= MAX_GC_FRACTION;
+                lastGcMillis = gc;
+                lastNanos = now;
+                return healthy;
+            }
+        });
+    }
+
+    private static long gcMillis()
+    {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * Run the checks, saying on stderr when one starts or stops failing
+     *
+     * @return the names of those which failed
+     */
+    static synchronized List<String> runChecks()
+    {
+        List<String> failed = new ArrayList<String>();
+        for (Map.Entry<String, Check> check : checks.entrySet()) {
+            String name = check.getKey();
+            boolean healthy;
+            try {
+                healthy = check.getValue().isHealthy();
+            }
+            catch (Exception e) {
+                if (!failing.contains(name)) {
+                    System.err.printf("watchdog check %s failed: %s\n", name, e);
+                }
+                healthy = false;
+            }
+
+            if (!healthy) {
+                failed.add(name);
+                if (failing.add(name)) {
+                    System.err.printf("watchdog check %s is failing, holding back the heartbeat\n", name);
+                }
+            }
+            else if (failing.remove(name)) {
+                System.err.printf("watchdog check %s has recovered\n", name);
+            }
+        }
+        failing.retainAll(checks.keySet());
+        return failed;
+    }
+
+    /**
+     * How long before <code>now</code> a daemon last published its heartbeat, or 0 if the
+     * snapshot is from another process than <code>pid</code>, such as one it replaced
+     */
+    static long heartbeatAge(DaemonMetrics.Snapshot snapshot, int pid, long now)
+    {
+        return snapshot.getPid() == pid ? Math.max(0, now - snapshot.getHeartbeat()) : 0;
+    }
+
+    /**
+     * Whether the heartbeat in <code>snapshot</code>, published by <code>pid</code>, is older
+     * than its watchdog timeout at <code>now</code>
+     */
+    static boolean isStalled(DaemonMetrics.Snapshot snapshot, int pid, long now)
+    {
+        return snapshot.getWatchdogTimeout() > 0 && heartbeatAge(snapshot, pid, now) > snapshot.getWatchdogTimeout();
+    }
+
+    public static final class Progress implements Check
+    {
+        private final    long timeoutNanos;
+        private volatile long lastBeat = System.nanoTime();
+
+        private Progress(long timeoutNanos)
+        {
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        /**
+         * Say that progress is being made
+         */
+        public void beat()
+        {
+            lastBeat = System.nanoTime();
+        }
+
+        @Override
+        public boolean isHealthy()
+        {
+            return System.nanoTime() - lastBeat <= timeoutNanos;
+        }
+    }
+}
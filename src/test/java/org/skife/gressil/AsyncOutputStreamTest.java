@@ -0,0 +1,122 @@
+package org.skife.gressil;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncOutputStreamTest
+{
+    @Test
+    public void testEverythingIsWrittenByClose() throws Exception
+    {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        AsyncOutputStream out = new AsyncOutputStream(sink, 16, AsyncOutputStream.OverflowPolicy.BLOCK, "test");
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            String line = "line " + i + "\n";
+            expected.append(line);
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+        }
+        out.close();
+
+        assertEquals(expected.toString(), new String(sink.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(0, out.getDroppedBytes());
+    }
+
+    @Test
+    public void testDropsWhenFull() throws Exception
+    {
+        final CountDownLatch stuck = new CountDownLatch(1);
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream slow = new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                try {
+                    stuck.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                sink.write(b);
+            }
+        };
+        AsyncOutputStream out = new AsyncOutputStream(slow, 8, AsyncOutputStream.OverflowPolicy.DROP, "test");
+
+        out.write(new byte[8]);
+        // whether or not the writer has taken the first write yet, this cannot fit
+        out.write(new byte[9]);
+        assertEquals(9, out.getDroppedBytes());
+
+        stuck.countDown();
+        out.close();
+        assertEquals(8, sink.size());
+    }
+
+    @Test
+    public void testInterruptedWriterKeepsWaiting() throws Exception
+    {
+        final CountDownLatch stuck = new CountDownLatch(1);
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream slow = new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                try {
+                    stuck.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                sink.write(b);
+            }
+        };
+        final AsyncOutputStream out = new AsyncOutputStream(slow, 8, AsyncOutputStream.OverflowPolicy.BLOCK, "test");
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        Thread writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    out.write(new byte[32]);
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                interrupted.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        writer.start();
+        while (writer.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        writer.interrupt();
+        long cpu = threads.getThreadCpuTime(writer.getId());
+        Thread.sleep(200);
+        assertEquals(Thread.State.WAITING, writer.getState());
+        assertTrue(threads.getThreadCpuTime(writer.getId()) - cpu < TimeUnit.MILLISECONDS.toNanos(50));
+
+        stuck.countDown();
+        writer.join();
+        out.close();
+        assertTrue(interrupted.get());
+        assertEquals(32, sink.size());
+    }
+}
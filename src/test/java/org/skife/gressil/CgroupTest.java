@@ -0,0 +1,58 @@
+package org.skife.gressil;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CgroupTest
+{
+    @Test
+    public void testEffectiveLimitsIncludeRootOfHierarchy() throws Exception
+    {
+        // as a container in its own cgroup namespace sees it, with its limits on the root
+        File root = Files.createTempDirectory("cgroup").toFile();
+        File worker = new File(root, "services/worker");
+        worker.mkdirs();
+        write(new File(root, "cgroup.controllers"), "cpu memory\n");
+        write(new File(root, "memory.max"), "1073741824\n");
+        write(new File(root, "cpu.max"), "150000 100000\n");
+        write(new File(root, "services/memory.max"), "max\n");
+        write(new File(worker, "memory.max"), "536870912\n");
+        write(new File(worker, "cpu.max"), "max 100000\n");
+
+        Cgroup container = Cgroup.self(root, proc("0::/\n"));
+        assertEquals(root, container.getPath());
+        assertEquals(1073741824L, container.getEffectiveMemoryMax());
+        assertEquals(1.5, container.getEffectiveCpus(), 0.001);
+
+        Cgroup nested = Cgroup.self(root, proc("1:cpu:/\n0::/services/worker\n"));
+        assertEquals(worker, nested.getPath());
+        assertEquals(536870912L, nested.getEffectiveMemoryMax());
+        assertEquals(1.5, nested.getEffectiveCpus(), 0.001);
+        assertEquals(1.0, nested.withCpuMax(100000, 100000).getEffectiveCpus(), 0.001);
+    }
+
+    @Test
+    public void testNoSelfWithoutUnifiedHierarchy() throws Exception
+    {
+        File root = Files.createTempDirectory("cgroup").toFile();
+        assertNull(Cgroup.self(root, proc("0::/\n")));
+    }
+
+    private static File proc(String cgroups) throws Exception
+    {
+        File file = File.createTempFile("cgroup", null);
+        file.deleteOnExit();
+        write(file, cgroups);
+        return file;
+    }
+
+    private static void write(File file, String value) throws Exception
+    {
+        Files.write(file.toPath(), value.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,123 @@
+package org.skife.gressil;
+
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class ClassDataSharingTest
+{
+    @Test
+    public void testOnlyJarsOnModernJvms() throws Exception
+    {
+        File dir = Files.createTempDir();
+        try {
+            File jar = emptyJar(dir);
+            assertNull(ClassDataSharing.unsupportedReason(jar.getPath(), 17));
+            assertNotNull(ClassDataSharing.unsupportedReason(jar.getPath(), 11));
+            assertNotNull(ClassDataSharing.unsupportedReason(jar.getPath() + File.pathSeparator + dir.getPath(), 17));
+        }
+        finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testDumpMovedIntoPlaceOnceChildExits() throws Exception
+    {
+        assumeTrue(JavaVersion.feature() >= 13);
+        File dir = Files.createTempDir();
+        try {
+            String classPath = emptyJar(dir).getPath();
+            File archive = new File(dir, "classes.jsa");
+
+            SpawnedProcess child = new Spawner("sleep", "60").start();
+            ClassDataSharing first = new ClassDataSharing(archive, classPath);
+            File firstDump = dumpFrom(first.getJvmArgs());
+            first.spawned(child.getPid());
+            byte[] dumped = "dumped classes".getBytes();
+            Files.write(dumped, firstDump);
+
+            // still running, so its dump may be half written, and it is the one dumping
+            assertEquals(Collections.<String>emptyList(), new ClassDataSharing(archive, classPath).getJvmArgs());
+            assertFalse(archive.exists());
+
+            child.destroy();
+            child.waitFor();
+            List<String> args = new ClassDataSharing(archive, classPath).getJvmArgs();
+            assertEquals(Arrays.asList("-XX:SharedArchiveFile=" + archive.getAbsolutePath()), args);
+            assertArrayEquals(dumped, Files.toByteArray(archive));
+            assertFalse(firstDump.exists());
+
+            // a different class path makes it stale
+            assertTrue(new ClassDataSharing(archive, classPath + File.pathSeparator + classPath).getJvmArgs().get(0)
+                                                                                               .startsWith("-XX:ArchiveClassesAtExit="));
+            assertFalse(archive.exists());
+        }
+        finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testOneDumpAtATime() throws Exception
+    {
+        assumeTrue(JavaVersion.feature() >= 13);
+        File dir = Files.createTempDir();
+        try {
+            String classPath = emptyJar(dir).getPath();
+            File archive = new File(dir, "classes.jsa");
+
+            // claimed from the moment it is handed out, before there is a child to own it
+            ClassDataSharing first = new ClassDataSharing(archive, classPath);
+            File firstDump = dumpFrom(first.getJvmArgs());
+            ClassDataSharing second = new ClassDataSharing(archive, classPath);
+            assertEquals(Collections.<String>emptyList(), second.getJvmArgs());
+            second.spawned(-1);
+
+            // until the spawn is abandoned
+            first.spawned(-1);
+            File thirdDump = dumpFrom(new ClassDataSharing(archive, classPath).getJvmArgs());
+            assertFalse(thirdDump.equals(firstDump));
+        }
+        finally {
+            delete(dir);
+        }
+    }
+
+    private static File dumpFrom(List<String> args)
+    {
+        assertEquals(1, args.size());
+        String flag = "-XX:ArchiveClassesAtExit=";
+        assertTrue(args.get(0), args.get(0).startsWith(flag));
+        return new File(args.get(0).substring(flag.length()));
+    }
+
+    private static File emptyJar(File dir) throws Exception
+    {
+        File jar = new File(dir, "app.jar");
+        new JarOutputStream(new FileOutputStream(jar)).close();
+        return jar;
+    }
+
+    private static void delete(File dir)
+    {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,110 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ControlSocketTest
+{
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        ControlSocket.register("echo", new ControlSocket.Handler()
+        {
+            @Override
+            public String handle(List<String> args)
+            {
+                return args.toString();
+            }
+        });
+
+        File socket = File.createTempFile("gressil", ".sock");
+        ControlSocket.open(socket);
+
+        assertEquals("[a, b]", ControlSocket.query(socket, "echo", "a", "b"));
+        assertTrue(ControlSocket.query(socket, "status").startsWith("running"));
+        try {
+            ControlSocket.query(socket, "no-such-command");
+            fail("expected an error");
+        }
+        catch (IOException e) {
+            assertEquals("unknown command: no-such-command", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testOnlyOwnerCanConnect() throws Exception
+    {
+        File dir = Files.createTempDirectory("gressil").toFile();
+        File path = new File(dir, "control.sock");
+        int fd = UnixSocket.listen(posix, path);
+        try {
+            assertEquals(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE),
+                         Files.getPosixFilePermissions(path.toPath()));
+            // nothing left behind from binding it
+            assertEquals(1, dir.list().length);
+        }
+        finally {
+            posix.close(fd);
+            path.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testSocketsAreCloseOnExec() throws Exception
+    {
+        final File path = new File(Files.createTempDirectory("gressil").toFile(), "control.sock");
+        final int listener = UnixSocket.listen(posix, path);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertCloseOnExec(listener);
+            Future<Integer> accepted = executor.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call()
+                {
+                    return UnixSocket.accept(posix, listener);
+                }
+            });
+            int client = UnixSocket.connect(posix, path);
+            int server = accepted.get();
+            try {
+                assertCloseOnExec(client);
+                assertCloseOnExec(server);
+            }
+            finally {
+                posix.close(client);
+                posix.close(server);
+            }
+        }
+        finally {
+            executor.shutdown();
+            posix.close(listener);
+            path.delete();
+            path.getParentFile().delete();
+        }
+    }
+
+    private static void assertCloseOnExec(int fd)
+    {
+        assertTrue(fd >= 0);
+        assertEquals(Fcntl.FD_CLOEXEC, posix.fcntl(fd, Fcntl.F_GETFD, 0) & Fcntl.FD_CLOEXEC);
+    }
+}
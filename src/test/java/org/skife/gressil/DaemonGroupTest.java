@@ -0,0 +1,148 @@
+package org.skife.gressil;
+
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class DaemonGroupTest
+{
+    @Test
+    public void testIndexedFileNames() throws Exception
+    {
+        assertEquals(new File("/var/run/worker-2.pid"), DaemonGroup.indexed(new File("/var/run/worker.pid"), 2));
+        assertEquals(new File("/var/log/worker-0"), DaemonGroup.indexed(new File("/var/log/worker"), 0));
+        assertEquals(new File("/tmp/.hidden-1"), DaemonGroup.indexed(new File("/tmp/.hidden"), 1));
+        assertEquals(new File("/dev/null"), DaemonGroup.indexed(new File("/dev/null"), 3));
+        assertNull(DaemonGroup.indexed(null, 3));
+    }
+
+    @Test
+    public void testNeedsAnInstance() throws Exception
+    {
+        try {
+            new Daemon().withInstances(0);
+            fail("made a group of no instances");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSpawnAllNeedsParallelism() throws Exception
+    {
+        try {
+            Daemon.spawnAll(Collections.singletonList(new Daemon()), 0);
+            fail("spawned with no parallelism");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRunningInstanceNotSpawnedAgain() throws Exception
+    {
+        File dir = Files.createTempDir();
+        TestJvm running = TestJvm.start(PidFileTest.HoldLock.class, new File(dir, "worker-0.pid").getPath());
+        try {
+            assertEquals("acquired", running.readLine());
+            List<Future<Status>> spawns = new Daemon().withPidFile(new File(dir, "worker.pid"))
+                                                      .withInstances(1)
+                                                      .start();
+            assertEquals(1, spawns.size());
+            assertTrue(spawns.get(0).isDone());
+            assertEquals(Status.Readiness.FAILED, spawns.get(0).get().getReadiness());
+        }
+        finally {
+            running.finish();
+            for (File leftover : dir.listFiles()) {
+                leftover.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testExitedChildrenAreReaped() throws Exception
+    {
+        assumeTrue(new File("/proc/self/stat").exists());
+        TestJvm launcher = TestJvm.start(Launcher.class);
+        try {
+            assertEquals("0 zombies", launcher.readLine());
+        }
+        finally {
+            launcher.kill();
+        }
+    }
+
+    /**
+     * Spawns children which exit straight away through each of the async and bulk paths, then
+     * waits for them all to go, printing how many are left as zombies
+     */
+    public static class Launcher
+    {
+        public static void main(String[] args) throws Exception
+        {
+            if (Daemon.isDaemon()) {
+                return;
+            }
+            Daemon.spawnAll(Arrays.asList(new Daemon(), new Daemon()), 2);
+            new Daemon().withInstances(2).start();
+            new Daemon().forkishAsync().get();
+
+            String self = new File("/proc/self").getCanonicalFile().getName();
+            long deadline = System.currentTimeMillis() + 10000;
+            int zombies;
+            do {
+                Thread.sleep(100);
+                zombies = 0;
+                int children = 0;
+                for (File proc : new File("/proc").listFiles()) {
+                    String[] stat = readStat(proc);
+                    if (stat != null && stat[1].equals(self)) {
+                        children++;
+                        if (stat[0].equals("Z")) {
+                            zombies++;
+                        }
+                    }
+                }
+                if (children == 0) {
+                    break;
+                }
+            }
+            while (System.currentTimeMillis() < deadline);
+            System.out.println(zombies + " zombies");
+            TestJvm.awaitFinish();
+        }
+
+        /**
+         * The state and parent pid of a process, or null if it is not a process or has gone
+         */
+        private static String[] readStat(File proc)
+        {
+            try {
+                String stat = new String(java.nio.file.Files.readAllBytes(new File(proc, "stat").toPath()),
+                                         StandardCharsets.US_ASCII);
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                return new String[]{fields[0], fields[1]};
+            }
+            catch (IOException e) {
+                return null;
+            }
+        }
+    }
+}
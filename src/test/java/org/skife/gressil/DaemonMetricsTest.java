@@ -0,0 +1,63 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DaemonMetricsTest
+{
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    @Test
+    public void testPublishedValuesRead() throws Exception
+    {
+        File file = File.createTempFile("gressil", ".metrics");
+        try {
+            DaemonMetrics.Counter requests = DaemonMetrics.counter("test.requests");
+            DaemonMetrics.Gauge queued = DaemonMetrics.gauge("test.queued");
+            assertSame(requests, DaemonMetrics.counter("test.requests"));
+
+            DaemonMetrics metrics = DaemonMetrics.open(file, 60000);
+            requests.add(3);
+            queued.set(-7);
+            long before = System.currentTimeMillis();
+            metrics.publish();
+
+            DaemonMetrics.Snapshot snapshot = DaemonMetrics.read(file);
+            assertEquals(posix.getpid(), snapshot.getPid());
+            assertEquals(60000, snapshot.getInterval());
+            assertTrue(snapshot.getHeartbeat() >= before);
+            assertEquals(Long.valueOf(3), snapshot.getValues().get("test.requests"));
+            assertEquals(Long.valueOf(-7), snapshot.getValues().get("test.queued"));
+            assertTrue(snapshot.getValues().get("jvm.heap.used") > 0);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testNotAMetricsFile() throws Exception
+    {
+        File file = File.createTempFile("gressil", ".metrics");
+        try {
+            Files.write(file.toPath(), "12345\n".getBytes());
+            DaemonMetrics.read(file);
+            fail("read a pidfile as metrics");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.skife.gressil;
+
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class DaemonPoolTest
+{
+    @Test(expected = IllegalArgumentException.class)
+    public void testSparesCannotSharePidfile() throws Exception
+    {
+        new DaemonPool(new Daemon().withPidFile(new File("/tmp/worker.pid")), 2);
+    }
+
+    @Test
+    public void testHandOutSpare() throws Exception
+    {
+        File out = File.createTempFile("pool", ".out");
+        TestJvm launcher = TestJvm.start(Launcher.class, out.getPath());
+        try {
+            assertEquals("2 spares", launcher.readLine());
+            assertEquals("handed out", launcher.readLine());
+            assertEquals("2 spares", launcher.readLine());
+            assertEquals("[tenant-a, 7]", launcher.readLine());
+        }
+        finally {
+            launcher.finish();
+            out.delete();
+        }
+    }
+
+    /**
+     * Hands out one spare from a pool of two, whose args it writes to the file it is given
+     */
+    public static class Launcher
+    {
+        public static void main(String[] args) throws Exception
+        {
+            File out = new File(args[0]);
+            Daemon daemon = new Daemon().withMainArgs(args).withStdout(out);
+            if (Daemon.isDaemon()) {
+                daemon.daemonize();
+                System.out.println(DaemonPool.getAssignedArgs());
+                return;
+            }
+
+            DaemonPool pool = new DaemonPool(daemon, 2);
+            try {
+                pool.start();
+                System.out.println(pool.getSpareCount() + " spares");
+                pool.spawn("tenant-a", "7");
+                System.out.println("handed out");
+                System.out.println(pool.getSpareCount() + " spares");
+
+                long deadline = System.currentTimeMillis() + 15000;
+                String assigned = "";
+                while (assigned.isEmpty() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(50);
+                    assigned = Files.toString(out, StandardCharsets.UTF_8).trim();
+                }
+                System.out.println(assigned);
+                TestJvm.awaitFinish();
+            }
+            finally {
+                pool.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class DaemonRegistryTest
+{
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    @Test
+    public void testCheckAll() throws Exception
+    {
+        File dir = Files.createTempDirectory("registry").toFile();
+        File running = write(new File(dir, "running.pid"), String.valueOf(posix.getpid()));
+        File dead = write(new File(dir, "dead.pid"), String.valueOf(Integer.MAX_VALUE));
+        File garbage = write(new File(dir, "garbage.pid"), "not a pid");
+        write(new File(dir, "notes.txt"), "ignored");
+
+        DaemonRegistry registry = new DaemonRegistry();
+        Map<File, DaemonStatus> statuses = registry.checkAll(dir);
+        assertEquals(asList(dead, garbage, running), asList(statuses.keySet().toArray()));
+        assertEquals(DaemonStatus.STATUS_DEAD, statuses.get(dead));
+        assertEquals(DaemonStatus.STATUS_UNKNOWN, statuses.get(garbage));
+        assertEquals(DaemonStatus.STATUS_RUNNING, statuses.get(running));
+
+        // replaced pidfiles are read again, missing ones are not running
+        write(dead, String.valueOf(posix.getpid()));
+        running.delete();
+        statuses = registry.checkAll(asList(dead, running));
+        assertEquals(DaemonStatus.STATUS_RUNNING, statuses.get(dead));
+        assertEquals(DaemonStatus.STATUS_NOT_RUNNING, statuses.get(running));
+    }
+
+    @Test
+    public void testStalledHeartbeat() throws Exception
+    {
+        File dir = Files.createTempDirectory("registry").toFile();
+        File pidfile = write(new File(dir, "watched.pid"), String.valueOf(posix.getpid()));
+        File metrics = DaemonMetrics.fileFor(pidfile);
+        try {
+            // published once, and never again
+            DaemonMetrics.open(metrics, 60000, 50);
+            DaemonRegistry registry = new DaemonRegistry();
+            assertEquals(DaemonStatus.STATUS_RUNNING, registry.check(pidfile));
+            Thread.sleep(100);
+            assertEquals(DaemonStatus.STATUS_STALLED, registry.check(pidfile));
+        }
+        finally {
+            metrics.delete();
+            pidfile.delete();
+            dir.delete();
+        }
+    }
+
+    private static File write(File file, String content) throws Exception
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        tmp.renameTo(file);
+        return file;
+    }
+}
@@ -0,0 +1,105 @@
+package org.skife.gressil;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DaemonStopTest
+{
+    private File dir;
+    private File pidfile;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        dir = Files.createTempDir();
+        pidfile = new File(dir, "daemon.pid");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for (File leftover : dir.listFiles()) {
+            leftover.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testExitsOnTerm() throws Exception
+    {
+        start("graceful");
+        StopResult result = new Daemon().withPidFile(pidfile).stop(10, TimeUnit.SECONDS);
+        assertEquals(DaemonStatus.STOP_SUCCESS, result.getStatus());
+        assertTrue(result.toString(), result.getElapsed(TimeUnit.SECONDS) < 10);
+        assertEquals(DaemonStatus.STATUS_NOT_RUNNING, new Daemon().withPidFile(pidfile).checkStatus());
+    }
+
+    @Test
+    public void testKilledWhenItIgnoresTerm() throws Exception
+    {
+        start("stubborn");
+        StopResult result = new Daemon().withPidFile(pidfile).stop(500, TimeUnit.MILLISECONDS);
+        assertEquals(DaemonStatus.STOP_KILLED, result.getStatus());
+        assertTrue(result.toString(), result.getElapsed(TimeUnit.MILLISECONDS) >= 500);
+        assertEquals(DaemonStatus.STATUS_NOT_RUNNING, new Daemon().withPidFile(pidfile).checkStatus());
+    }
+
+    @Test
+    public void testNotRunning() throws Exception
+    {
+        StopResult result = new Daemon().withPidFile(pidfile).stop(1, TimeUnit.SECONDS);
+        assertEquals(DaemonStatus.STOP_NOT_RUNNING, result.getStatus());
+    }
+
+    /**
+     * Start a {@link Target} daemon, returning once it is ready
+     */
+    private void start(String behaviour) throws Exception
+    {
+        TestJvm launcher = TestJvm.start(Target.class, behaviour, pidfile.getPath());
+        assertEquals(0, launcher.finish());
+        assertEquals(DaemonStatus.STATUS_RUNNING, new Daemon().withPidFile(pidfile).checkStatus());
+    }
+
+    /**
+     * A daemon which either exits on SIGTERM, or with "stubborn" hangs in a shutdown hook
+     */
+    public static class Target
+    {
+        public static void main(String[] args) throws Exception
+        {
+            new Daemon().withMainArgs(args)
+                        .withPidFile(new File(args[1]))
+                        .withReadinessTimeout(20, TimeUnit.SECONDS)
+                        .daemonize();
+
+            if (args[0].equals("stubborn")) {
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        while (true) {
+                            try {
+                                Thread.sleep(Long.MAX_VALUE);
+                            }
+                            catch (InterruptedException e) {
+                                // still not going
+                            }
+                        }
+                    }
+                }));
+            }
+            Daemon.notifyReady();
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.google.common.io.Files;
 import jnr.ffi.Library;
 
 import java.io.File;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
@@ -18,12 +19,13 @@ public class DaemonTest
         File err = new File("/tmp/gressil.err");
         File pid = new File("/tmp/gressil.pid");
         File extra = new File("/tmp/gressil.touchme");
-        File done = new File("/tmp/gressil.done");
-        out.delete();
-        err.delete();
-        pid.delete();
-        extra.delete();
-        done.delete();
+        if (!Daemon.isDaemon()) {
+            // the child's stdout and stderr are opened before it starts, leave them be
+            out.delete();
+            err.delete();
+            pid.delete();
+            extra.delete();
+        }
 
         if (args.length > 0) {
             for (String arg : args) {
@@ -35,13 +37,12 @@ public class DaemonTest
                                     .withStdout(out)
                                     .withStderr(err)
                                     .withExtraMainArgs(extra.getAbsolutePath())
+                                    .withReadinessTimeout(30, TimeUnit.SECONDS)
                                     .forkish();
 
         if (status.isParent()) {
             // parent
-            while (!done.exists()) {
-                Thread.sleep(10);
-            }
+            assertThat(status.isReady(), is(true));
 
             String out_msg = Files.readFirstLine(out, Charsets.US_ASCII);
             assertThat(out_msg, equalTo("out out"));
@@ -68,7 +69,7 @@ public class DaemonTest
             // child
             System.out.println("out out");
             System.err.println("err err");
-            Files.touch(done);
+            Daemon.notifyReady();
             Thread.currentThread().join();
         }
     }
@@ -0,0 +1,25 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class FcntlTest
+{
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    @Test
+    public void testPipeIsCloseOnExec() throws Exception
+    {
+        int[] fds = Fcntl.pipe(posix);
+        try {
+            assertEquals(Fcntl.FD_CLOEXEC, posix.fcntl(fds[0], Fcntl.F_GETFD, 0) & Fcntl.FD_CLOEXEC);
+            assertEquals(Fcntl.FD_CLOEXEC, posix.fcntl(fds[1], Fcntl.F_GETFD, 0) & Fcntl.FD_CLOEXEC);
+        }
+        finally {
+            posix.close(fds[0]);
+            posix.close(fds[1]);
+        }
+    }
+}
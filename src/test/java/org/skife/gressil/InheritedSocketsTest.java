@@ -0,0 +1,110 @@
+package org.skife.gressil;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class InheritedSocketsTest
+{
+    private static final File PROC_FDS = new File("/proc/self/fd");
+
+    @Test
+    public void testFindsDescriptorOfBoundSocket() throws Exception
+    {
+        ServerSocketChannel wildcard = ServerSocketChannel.open();
+        ServerSocketChannel loopback = ServerSocketChannel.open();
+        try {
+            wildcard.bind(new InetSocketAddress(0));
+            loopback.bind(new InetSocketAddress("127.0.0.1", 0));
+
+            int a = InheritedSockets.fdOf(wildcard);
+            int b = InheritedSockets.fdOf(loopback);
+            assertTrue(a > 2);
+            assertTrue(b > 2);
+            assertTrue(a != b);
+        }
+        finally {
+            wildcard.close();
+            loopback.close();
+        }
+    }
+
+    @Test
+    public void testSkipsAcceptedConnectionOnLowerDescriptor() throws Exception
+    {
+        assumeTrue(PROC_FDS.isDirectory());
+
+        // leave two low descriptors free for the client and accepted ends of a connection
+        FileInputStream hole1 = new FileInputStream("/dev/null");
+        FileInputStream hole2 = new FileInputStream("/dev/null");
+        Set<Integer> before = openSockets();
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        Set<Integer> listening = openSockets();
+        listening.removeAll(before);
+        hole1.close();
+        hole2.close();
+
+        SocketChannel client = null;
+        SocketChannel accepted = null;
+        try {
+            listener.bind(new InetSocketAddress("127.0.0.1", 0));
+            Set<Integer> connected = openSockets();
+            client = SocketChannel.open(listener.getLocalAddress());
+            accepted = listener.accept();
+            Set<Integer> connection = openSockets();
+            connection.removeAll(connected);
+
+            assertEquals(1, listening.size());
+            int listener_fd = listening.iterator().next();
+            assertTrue(Collections.min(connection) < listener_fd);
+            assertEquals(listener_fd, InheritedSockets.fdOf(listener));
+        }
+        finally {
+            if (client != null) {
+                client.close();
+            }
+            if (accepted != null) {
+                accepted.close();
+            }
+            listener.close();
+        }
+    }
+
+    /**
+     * Our open sockets, leaving out the descriptor used to list them
+     */
+    private static Set<Integer> openSockets() throws Exception
+    {
+        Set<Integer> fds = new HashSet<Integer>();
+        for (String name : PROC_FDS.list()) {
+            try {
+                if (Files.readSymbolicLink(new File(PROC_FDS, name).toPath()).toString().startsWith("socket:")) {
+                    fds.add(Integer.parseInt(name));
+                }
+            }
+            catch (IOException e) {
+                // closed since it was listed
+            }
+        }
+        return fds;
+    }
+
+    @Test
+    public void testNothingToAdoptWhenNotPassedSockets() throws Exception
+    {
+        assertEquals(0, InheritedSockets.adopt().size());
+    }
+}
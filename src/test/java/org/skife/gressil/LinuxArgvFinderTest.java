@@ -0,0 +1,43 @@
+package org.skife.gressil;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class LinuxArgvFinderTest
+{
+    @Test
+    public void testReadSplitsOnNul() throws Exception
+    {
+        File cmdline = File.createTempFile("cmdline", null);
+        String native_encoding = System.getProperty("sun.jnu.encoding", Charset.defaultCharset().name());
+        Files.write(cmdline.toPath(), "java\0-cp\0a b.jar\0Main\0two words\0\0".getBytes(native_encoding));
+        try {
+            assertEquals(asList("java", "-cp", "a b.jar", "Main", "two words", ""), LinuxArgvFinder.read(cmdline));
+        }
+        finally {
+            cmdline.delete();
+        }
+    }
+
+    @Test
+    public void testMainArgsStart() throws Exception
+    {
+        assertEquals(4, LinuxArgvFinder.mainArgsStart(argv("java -cp x.jar Main a b")));
+        assertEquals(4, LinuxArgvFinder.mainArgsStart(argv("java -Xmx1g -jar x.jar a")));
+        assertEquals(6, LinuxArgvFinder.mainArgsStart(argv("java @opts --add-opens a/b=c -m mod/Main a")));
+        assertEquals(2, LinuxArgvFinder.mainArgsStart(argv("java --module=mod/Main a")));
+        assertEquals(2, LinuxArgvFinder.mainArgsStart(argv("java -version")));
+    }
+
+    private static List<String> argv(String cmdline)
+    {
+        return asList(cmdline.split(" "));
+    }
+}
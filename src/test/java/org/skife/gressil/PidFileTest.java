@@ -0,0 +1,101 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+public class PidFileTest
+{
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    @Test
+    public void testCheckingDoesNotStopAcquiring() throws Exception
+    {
+        File dir = Files.createTempDirectory("pidfile").toFile();
+        File file = new File(dir, "daemon.pid");
+        final PidFile pidfile = new PidFile(file);
+        Files.write(new File(dir, "daemon.pid.lock").toPath(), new byte[0]);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread poller = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (!done.get()) {
+                    pidfile.getLockState();
+                }
+            }
+        });
+        poller.start();
+        try {
+            // as many daemons starting, one after the other, while the status is polled
+            TestJvm starts = TestJvm.start(TryLock.class, file.getPath(), "2000");
+            assertEquals("0 failed", starts.readLine());
+            assertEquals(0, starts.finish());
+
+            TestJvm holder = TestJvm.start(HoldLock.class, file.getPath());
+            assertEquals("acquired", holder.readLine());
+            assertEquals(PidFile.LockState.HELD, pidfile.getLockState());
+            assertEquals(0, holder.finish());
+            assertEquals(PidFile.LockState.FREE, pidfile.getLockState());
+        }
+        finally {
+            done.set(true);
+            poller.join();
+            for (File leftover : dir.listFiles()) {
+                leftover.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Locks the pidfile given, as a daemon starting up would, until its stdin is closed
+     */
+    public static class HoldLock
+    {
+        public static void main(String[] args) throws Exception
+        {
+            boolean acquired = new PidFile(new File(args[0])).acquire(posix.getpid(), false);
+            System.out.println(acquired ? "acquired" : "held");
+            System.out.flush();
+            TestJvm.awaitFinish();
+        }
+    }
+
+    /**
+     * Takes and releases the lock of the pidfile given, as {@link PidFile#acquire(int, boolean)}
+     * does, for the given number of milliseconds, and says how often it found the lock held
+     */
+    public static class TryLock
+    {
+        public static void main(String[] args) throws Exception
+        {
+            FileChannel channel = new RandomAccessFile(args[0] + ".lock", "rw").getChannel();
+            int failed = 0;
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(args[1]));
+            while (System.nanoTime() < end) {
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    failed++;
+                }
+                else {
+                    lock.release();
+                }
+            }
+            System.out.println(failed + " failed");
+            System.out.flush();
+            TestJvm.awaitFinish();
+        }
+    }
+}
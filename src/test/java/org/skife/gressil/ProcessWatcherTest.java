@@ -0,0 +1,137 @@
+package org.skife.gressil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs each case against a watcher using pidfds, where the kernel has them, and one probing
+ */
+@RunWith(Parameterized.class)
+public class ProcessWatcherTest
+{
+    @Parameterized.Parameters
+    public static Collection<Object[]> modes()
+    {
+        return Arrays.asList(new Object[]{true}, new Object[]{false});
+    }
+
+    private final boolean pidfds;
+
+    private ProcessWatcher watcher;
+
+    public ProcessWatcherTest(boolean pidfds)
+    {
+        this.pidfds = pidfds;
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        assumeTrue(!pidfds || ProcessWatcher.hasPidfds());
+        watcher = new ProcessWatcher(pidfds);
+        assertEquals(pidfds, watcher.usesPidfds());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void testExitIsSeen() throws Exception
+    {
+        SpawnedProcess sleep = new Spawner("sleep", "0.5").start();
+        final AtomicInteger seen = new AtomicInteger();
+        final CountDownLatch exited = new CountDownLatch(1);
+        watcher.watch(sleep.getPid(), new ProcessWatcher.ExitListener()
+        {
+            @Override
+            public void exited(int pid)
+            {
+                seen.set(pid);
+                exited.countDown();
+            }
+        });
+        assertEquals(1, exited.getCount());
+
+        assertTrue(exited.await(10, TimeUnit.SECONDS));
+        assertEquals(sleep.getPid(), seen.get());
+        assertTrue(watcher.awaitExit(sleep.getPid(), 10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAlreadyExited() throws Exception
+    {
+        SpawnedProcess exited = new Spawner("true").start();
+        assertEquals(0, exited.waitFor());
+
+        final CountDownLatch called = new CountDownLatch(1);
+        watcher.watch(exited.getPid(), new ProcessWatcher.ExitListener()
+        {
+            @Override
+            public void exited(int pid)
+            {
+                called.countDown();
+            }
+        });
+        // before watch returned
+        assertEquals(0, called.getCount());
+    }
+
+    @Test
+    public void testCloseWithPendingWatches() throws Exception
+    {
+        SpawnedProcess sleep = new Spawner("sleep", "60").start();
+        final CountDownLatch called = new CountDownLatch(1);
+        try {
+            watcher.watch(sleep.getPid(), new ProcessWatcher.ExitListener()
+            {
+                @Override
+                public void exited(int pid)
+                {
+                    called.countDown();
+                }
+            });
+            watcher.close();
+            watcher.close();
+        }
+        finally {
+            sleep.destroy();
+        }
+        sleep.waitFor();
+
+        // long enough for a probe, or the pidfd to be seen, had the watcher still been running
+        assertFalse(called.await(500, TimeUnit.MILLISECONDS));
+        try {
+            watcher.watch(sleep.getPid(), new ProcessWatcher.ExitListener()
+            {
+                @Override
+                public void exited(int pid)
+                {
+                }
+            });
+            fail("watched with a closed watcher");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.skife.gressil;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class SizingProfileTest
+{
+    private static final long GB = 1024L * 1024 * 1024;
+
+    @Test
+    public void testJvmArgsForLimits() throws Exception
+    {
+        assertEquals(argv("-Xmx1190m -Xms1190m -XX:+UseG1GC -XX:MaxGCPauseMillis=50 -XX:ActiveProcessorCount=2"
+                          + " -XX:ParallelGCThreads=2 -Djava.util.concurrent.ForkJoinPool.common.parallelism=1"),
+                     SizingProfile.LATENCY.getJvmArgs(2 * GB, 1.5, 17));
+        assertEquals(argv("-Xmx4876m -Xms4876m -XX:+UseZGC"),
+                     SizingProfile.LATENCY.getJvmArgs(8 * GB, -1, 17));
+        assertEquals(argv("-Xmx224m -XX:+UseSerialGC -XX:TieredStopAtLevel=1"),
+                     SizingProfile.SMALL_FOOTPRINT.getJvmArgs(GB / 2, -1, 7));
+        assertEquals(argv("-XX:MaxRAMPercentage=75 -XX:+UseParallelGC"),
+                     SizingProfile.THROUGHPUT.getJvmArgs(-1, -1, 11));
+    }
+
+    @Test
+    public void testWithoutSizingArgs() throws Exception
+    {
+        assertEquals(argv("java -Dx=y -XX:+UseCompressedOops -cp x.jar Main -Xmx1g"),
+                     SizingProfile.withoutSizingArgs(argv("java -Xmx2g -Xms2g -Dx=y -XX:+UseZGC -XX:+UseCompressedOops"
+                                                          + " -XX:ActiveProcessorCount=8 -cp x.jar Main -Xmx1g")));
+    }
+
+    private static List<String> argv(String cmdline)
+    {
+        return asList(cmdline.split(" "));
+    }
+}
@@ -0,0 +1,68 @@
+package org.skife.gressil;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpawnerTest
+{
+    @Test
+    public void testPipes() throws Exception
+    {
+        SpawnedProcess cat = new Spawner("cat").start();
+        cat.getStdin().write(ByteBuffer.wrap("hello\n".getBytes(StandardCharsets.UTF_8)));
+        cat.getStdin().close();
+        assertEquals("hello\n", readAll(cat.getStdout()));
+        assertEquals(0, cat.waitFor());
+        assertFalse(cat.isAlive());
+    }
+
+    @Test
+    public void testExitCodeEnvironmentAndDirectory() throws Exception
+    {
+        SpawnedProcess sh = new Spawner("sh", "-c", "echo $GREETING; pwd; exit 3")
+            .withEnvironment(Collections.singletonMap("GREETING", "hi"))
+            .withDirectory(new File("/"))
+            .withStderr(Spawner.Redirect.DISCARD)
+            .start();
+        assertEquals("hi\n/\n", readAll(sh.getStdout()));
+        assertTrue(sh.waitFor(10, TimeUnit.SECONDS));
+        assertEquals(3, sh.exitValue());
+    }
+
+    @Test
+    public void testMissingCommand() throws Exception
+    {
+        try {
+            new Spawner("/nonexistent/command").start();
+            fail("spawned a command which does not exist");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static String readAll(ReadableByteChannel channel) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        while (channel.read(buffer) >= 0) {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        channel.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
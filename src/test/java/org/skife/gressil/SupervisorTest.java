@@ -0,0 +1,126 @@
+package org.skife.gressil;
+
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Each case runs a supervisor in a {@link Launcher} of its own, as the daemons it supervises are
+ * spawned from the launcher's argv
+ */
+public class SupervisorTest
+{
+    private static final String RESULT = "result: ";
+
+    @Test
+    public void testBacksOffThenGivesUpOnCrashLoop() throws Exception
+    {
+        assertEquals("restarts 2, crash looping true, exit code 3, backed off true", run("crash-loop"));
+    }
+
+    @Test
+    public void testStopDuringBackoff() throws Exception
+    {
+        assertEquals("restarts 0, crash looping false, exit code 3, stopped promptly true", run("stop-in-backoff"));
+    }
+
+    @Test
+    public void testStalledDaemonIsKilledAndRestarted() throws Exception
+    {
+        assertEquals("stalls 1, restarts 1, exit code 137", run("stall"));
+    }
+
+    private static String run(String scenario) throws Exception
+    {
+        File dir = Files.createTempDir();
+        TestJvm launcher = TestJvm.start(Launcher.class, scenario, new File(dir, "daemon.pid").getPath());
+        try {
+            // skipping what the supervisor logs to stderr along the way
+            String line;
+            while ((line = launcher.readLine()) != null && !line.startsWith(RESULT)) {
+                // keep looking
+            }
+            return line == null ? null : line.substring(RESULT.length());
+        }
+        finally {
+            launcher.kill();
+            for (File leftover : dir.listFiles()) {
+                leftover.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    public static class Launcher
+    {
+        public static void main(String[] args) throws Exception
+        {
+            String scenario = args[0];
+            Daemon daemon = new Daemon().withMainArgs(args).withPidFile(new File(args[1]));
+            if (scenario.equals("stall")) {
+                daemon = daemon.withWatchdog(500, TimeUnit.MILLISECONDS);
+            }
+            Supervisor supervisor = new Supervisor(daemon);
+            if (scenario.equals("stop-in-backoff")) {
+                supervisor = supervisor.withBackoff(1, 1, TimeUnit.MINUTES);
+            }
+            else {
+                supervisor = supervisor.withBackoff(200, 400, TimeUnit.MILLISECONDS)
+                                       .withCrashLoopLimit(2, 1, TimeUnit.MINUTES);
+            }
+
+            long started = System.currentTimeMillis();
+            Status status = supervisor.start();
+            if (!status.isParent()) {
+                if (scenario.equals("stall")) {
+                    Watchdog.register("stuck", new Watchdog.Check()
+                    {
+                        @Override
+                        public boolean isHealthy()
+                        {
+                            return false;
+                        }
+                    });
+                    Thread.sleep(Long.MAX_VALUE);
+                }
+                System.exit(3);
+            }
+
+            if (scenario.equals("crash-loop")) {
+                supervisor.awaitTermination();
+                // two restarts, after 200 and 400ms
+                long elapsed = System.currentTimeMillis() - started;
+                System.out.printf(RESULT + "restarts %d, crash looping %s, exit code %d, backed off %s\n",
+                                  supervisor.getRestartCount(), supervisor.isCrashLooping(),
+                                  supervisor.getLastExitCode(), elapsed >= 600);
+            }
+            else if (scenario.equals("stop-in-backoff")) {
+                while (supervisor.getLastExitCode() < 0) {
+                    Thread.sleep(10);
+                }
+                long stopping = System.currentTimeMillis();
+                supervisor.stop();
+                supervisor.awaitTermination();
+                System.out.printf(RESULT + "restarts %d, crash looping %s, exit code %d, stopped promptly %s\n",
+                                  supervisor.getRestartCount(), supervisor.isCrashLooping(),
+                                  supervisor.getLastExitCode(), System.currentTimeMillis() - stopping < 5000);
+            }
+            else {
+                while (supervisor.getRestartCount() < 1) {
+                    Thread.sleep(10);
+                }
+                // that of the stalled daemon, until its replacement exits too
+                int killed = supervisor.getLastExitCode();
+                supervisor.stop();
+                supervisor.awaitTermination();
+                System.out.printf(RESULT + "stalls %d, restarts %d, exit code %d\n",
+                                  supervisor.getStallCount(), supervisor.getRestartCount(), killed);
+            }
+            TestJvm.awaitFinish();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.skife.gressil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Runs a main class from the test class path in a JVM of its own, for tests which need another
+ * process, or need a process whose argv a {@link Daemon} can spawn again
+ */
+final class TestJvm
+{
+    private final Process        process;
+    private final BufferedReader out;
+
+    private TestJvm(Process process)
+    {
+        this.process = process;
+        this.out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    static TestJvm start(Class<?> main, String... args) throws IOException
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(main.getName());
+        command.addAll(asList(args));
+        return new TestJvm(new ProcessBuilder(command).redirectErrorStream(true).start());
+    }
+
+    /**
+     * The next line it prints, or null once it has exited
+     */
+    String readLine() throws IOException
+    {
+        return out.readLine();
+    }
+
+    /**
+     * Close its stdin, which the mains in these tests take as the signal to exit, and wait for it
+     */
+    int finish() throws IOException, InterruptedException
+    {
+        process.getOutputStream().close();
+        return process.waitFor();
+    }
+
+    void kill() throws InterruptedException
+    {
+        process.destroy();
+        process.waitFor();
+    }
+
+    /**
+     * Wait for stdin to be closed, as by {@link #finish()}
+     */
+    static void awaitFinish() throws IOException
+    {
+        while (System.in.read() >= 0) {
+            // discard
+        }
+    }
+}
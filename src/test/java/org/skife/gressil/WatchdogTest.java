@@ -0,0 +1,66 @@
+package org.skife.gressil;
+
+import jnr.ffi.Library;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WatchdogTest
+{
+    private static final MicroC posix = Library.loadLibrary("c", MicroC.class);
+
+    @Test
+    public void testFailingCheckHoldsBackHeartbeat() throws Exception
+    {
+        File file = File.createTempFile("gressil", ".metrics");
+        Watchdog.Progress progress = Watchdog.progress("test.progress", 50, TimeUnit.MILLISECONDS);
+        try {
+            DaemonMetrics metrics = DaemonMetrics.open(file, 60000);
+            long heartbeat = DaemonMetrics.read(file).getHeartbeat();
+
+            Thread.sleep(100);
+            metrics.publish();
+            DaemonMetrics.Snapshot stalled = DaemonMetrics.read(file);
+            assertEquals(heartbeat, stalled.getHeartbeat());
+            assertEquals(Long.valueOf(1), stalled.getValues().get("watchdog.failing"));
+            assertTrue(Watchdog.heartbeatAge(stalled, posix.getpid(), System.currentTimeMillis()) >= 100);
+            assertEquals(0, Watchdog.heartbeatAge(stalled, posix.getpid() + 1, System.currentTimeMillis()));
+
+            progress.beat();
+            metrics.publish();
+            DaemonMetrics.Snapshot healthy = DaemonMetrics.read(file);
+            assertTrue(healthy.getHeartbeat() > heartbeat);
+            assertEquals(Long.valueOf(0), healthy.getValues().get("watchdog.failing"));
+        }
+        finally {
+            Watchdog.unregister("test.progress");
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testHeartbeatMustBeFrequentEnoughForTimeout() throws Exception
+    {
+        new Daemon().withMetrics(1, TimeUnit.SECONDS).withWatchdog(2, TimeUnit.SECONDS);
+        new Daemon().withWatchdog(200, TimeUnit.MILLISECONDS);
+        try {
+            new Daemon().withMetrics(10, TimeUnit.SECONDS).withWatchdog(2, TimeUnit.SECONDS);
+            fail("accepted a heartbeat less often than the watchdog timeout");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new Daemon().withWatchdog(2, TimeUnit.SECONDS).withMetrics(10, TimeUnit.SECONDS);
+            fail("accepted a heartbeat less often than the watchdog timeout");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}